@@ -0,0 +1,354 @@
+package nachos.ag;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.util.StringTokenizer;
+
+/**
+ * An autograder that measures the kernel's threading primitives instead of
+ * testing them. For each primitive and each thread count, it forks that many
+ * threads, has them share about <tt>ops</tt> calls of the primitive, and
+ * reports the host time and the simulated time per operation. Each
+ * measurement is preceded by a shorter run of the same benchmark to warm up
+ * the JIT.
+ *
+ * <p>
+ * Most benchmarks count each call a thread makes as one operation.
+ * <tt>Communicator</tt> counts each word transferred from a speaker to a
+ * listener once, and <tt>TCB.contextSwitch</tt> counts the switches between
+ * TCBs that actually happen while pairs of threads yield to each other, as
+ * seen by <tt>runningThread()</tt>; each of those also includes the cost of
+ * the yield that caused it.
+ *
+ * <p>
+ * The benchmarks run under whichever scheduler <tt>ThreadedKernel.scheduler</tt>
+ * names, so compare schedulers by running once with each. For example, from
+ * the <tt>proj1</tt> directory:
+ *
+ * <pre>
+ * nachos -- nachos.ag.BenchmarkGrader -# ops=20000,threads=1:4:16:64
+ * </pre>
+ *
+ * <p>
+ * Both test arguments are optional. <tt>threads</tt> is a colon-separated
+ * list of thread counts. Benchmarks that pair threads up use an even number
+ * of them (at least two). The fork benchmark runs two threads per worker, so
+ * thread counts must stay below half of <tt>TCB.getThreadLimit()</tt>, which
+ * is much higher with <tt>TCB.virtualThreads</tt>.
+ */
+public class BenchmarkGrader extends AutoGrader {
+    void init() {
+	ops = hasArgument("ops") ? getIntegerArgument("ops") : 20000;
+	Lib.assertTrue(ops > 0, "ops must be positive");
+
+	String threads =
+	    hasArgument("threads") ? getStringArgument("threads") : "1:4:16:64";
+
+	StringTokenizer st = new StringTokenizer(threads, ":");
+	threadCounts = new int[st.countTokens()];
+	for (int i=0; i<threadCounts.length; i++) {
+	    try {
+		threadCounts[i] = Integer.parseInt(st.nextToken());
+	    }
+	    catch (NumberFormatException e) {
+		Lib.assertNotReached("threads must be a list of integers");
+	    }
+
+	    // the fork benchmark runs two threads per worker
+	    Lib.assertTrue(threadCounts[i] > 0 &&
+			   2*threadCounts[i] + 2 < TCB.getThreadLimit(),
+			   "bad thread count: " + threadCounts[i]);
+	}
+    }
+
+    void run() {
+	System.out.println("Benchmarking with " +
+			   ThreadedKernel.scheduler.getClass().getName());
+
+	for (int i=0; i<benchmarks.length; i++) {
+	    for (int j=0; j<threadCounts.length; j++) {
+		Benchmark benchmark = benchmarks[i];
+		int threads = benchmark.threads(threadCounts[j]);
+
+		measure(benchmark, threads, Math.max(1, ops/10));
+		report(benchmark, threads, measure(benchmark, threads, ops));
+	    }
+	}
+
+	kernel.terminate();
+    }
+
+    /**
+     * Count a context switch whenever a thread other than the last one starts
+     * running.
+     */
+    public void runningThread(KThread thread) {
+	if (thread != lastRunning)
+	    switches++;
+	lastRunning = thread;
+
+	super.runningThread(thread);
+    }
+
+    /**
+     * Run <i>benchmark</i> with <i>threads</i> threads sharing about
+     * <i>ops</i> calls. Returns the number of operations done, the host
+     * nanoseconds taken, and the ticks taken.
+     */
+    private long[] measure(Benchmark benchmark, int threads, int ops) {
+	int perThread = Math.max(1, ops/threads);
+	final Semaphore finished = new Semaphore(0);
+
+	benchmark.setUp(threads);
+
+	long startTicks = getTime();
+	long startNanos = System.nanoTime();
+	long startSwitches = switches;
+
+	for (int i=0; i<threads; i++) {
+	    final Runnable worker = benchmark.worker(i, perThread);
+
+	    KThread thread = new KThread(new Runnable() {
+		    public void run() {
+			worker.run();
+			finished.V();
+		    }
+		});
+	    thread.setName(benchmark.name + " " + i);
+	    thread.fork();
+	}
+
+	for (int i=0; i<threads; i++)
+	    finished.P();
+
+	long nanos = System.nanoTime() - startNanos;
+	long ticks = getTime() - startTicks;
+
+	return new long[] {
+	    benchmark.operations(threads, perThread, switches - startSwitches),
+	    nanos, ticks };
+    }
+
+    private void report(Benchmark benchmark, int threads, long[] result) {
+	long count = Math.max(1, result[0]), nanos = result[1], ticks = result[2];
+	String unit = benchmark.unit, units = benchmark.units;
+
+	System.out.println(benchmark.name + ", " + threads + " threads: " +
+			   count + " " + units + ", " +
+			   nanos / count + " ns/" + unit + ", " +
+			   count * 1000000000L / Math.max(1, nanos) +
+			   " " + units + "/s, " +
+			   ticks / count + " ticks/" + unit);
+    }
+
+    /**
+     * A threading primitive to measure.
+     */
+    private static abstract class Benchmark {
+	Benchmark(String name) {
+	    this(name, "call", "calls");
+	}
+
+	Benchmark(String name, String unit, String units) {
+	    this.name = name;
+	    this.unit = unit;
+	    this.units = units;
+	}
+
+	/** Return the number of threads to use for the requested count. */
+	int threads(int requested) {
+	    return requested;
+	}
+
+	/** Prepare any state the workers share. */
+	void setUp(int threads) {
+	}
+
+	/** Return worker <i>index</i>, which makes <i>calls</i> calls. */
+	abstract Runnable worker(int index, int calls);
+
+	/**
+	 * Return the number of operations done by <i>threads</i> workers
+	 * making <i>calls</i> calls each, during which there were
+	 * <i>switches</i> context switches.
+	 */
+	long operations(int threads, int calls, long switches) {
+	    return (long) threads * calls;
+	}
+
+	String name;
+	/** What one operation, and several, are called in the report. */
+	String unit, units;
+    }
+
+    /**
+     * A benchmark whose threads work in pairs, taking turns.
+     */
+    private static abstract class PairBenchmark extends Benchmark {
+	PairBenchmark(String name) {
+	    super(name);
+	}
+
+	PairBenchmark(String name, String unit, String units) {
+	    super(name, unit, units);
+	}
+
+	int threads(int requested) {
+	    return Math.max(2, requested & ~1);
+	}
+    }
+
+    private Benchmark[] benchmarks = {
+	new Benchmark("KThread.fork") {
+	    Runnable worker(int index, final int calls) {
+		return new Runnable() {
+			public void run() {
+			    final Semaphore child = new Semaphore(0);
+			    for (int i=0; i<calls; i++) {
+				new KThread(new Runnable() {
+					public void run() { child.V(); }
+				    }).fork();
+				child.P();
+			    }
+			}
+		    };
+	    }
+	},
+
+	new Benchmark("KThread.yield") {
+	    Runnable worker(int index, final int calls) {
+		return new Runnable() {
+			public void run() {
+			    for (int i=0; i<calls; i++)
+				KThread.yield();
+			}
+		    };
+	    }
+	},
+
+	new PairBenchmark("TCB.contextSwitch", "switch", "switches") {
+	    Runnable worker(int index, final int calls) {
+		return new Runnable() {
+			public void run() {
+			    for (int i=0; i<calls; i++)
+				KThread.yield();
+			}
+		    };
+	    }
+
+	    long operations(int threads, int calls, long switches) {
+		return switches;
+	    }
+	},
+
+	new Benchmark("Lock.acquire/release") {
+	    void setUp(int threads) {
+		lock = new Lock();
+	    }
+
+	    Runnable worker(int index, final int calls) {
+		return new Runnable() {
+			public void run() {
+			    for (int i=0; i<calls; i++) {
+				lock.acquire();
+				lock.release();
+			    }
+			}
+		    };
+	    }
+
+	    private Lock lock;
+	},
+
+	new Benchmark("Semaphore.V/P") {
+	    void setUp(int threads) {
+		semaphore = new Semaphore(0);
+	    }
+
+	    Runnable worker(int index, final int calls) {
+		return new Runnable() {
+			public void run() {
+			    for (int i=0; i<calls; i++) {
+				semaphore.V();
+				semaphore.P();
+			    }
+			}
+		    };
+	    }
+
+	    private Semaphore semaphore;
+	},
+
+	new PairBenchmark("Condition2.sleep/wake") {
+	    void setUp(int threads) {
+		locks = new Lock[threads/2];
+		conditions = new Condition2[threads/2];
+		turns = new int[threads/2];
+
+		for (int i=0; i<threads/2; i++) {
+		    locks[i] = new Lock();
+		    conditions[i] = new Condition2(locks[i]);
+		}
+	    }
+
+	    Runnable worker(final int index, final int calls) {
+		final int pair = index/2, me = index%2;
+
+		return new Runnable() {
+			public void run() {
+			    Lock lock = locks[pair];
+			    Condition2 condition = conditions[pair];
+
+			    lock.acquire();
+			    for (int i=0; i<calls; i++) {
+				while (turns[pair] != me)
+				    condition.sleep();
+
+				turns[pair] = 1-me;
+				condition.wake();
+			    }
+			    lock.release();
+			}
+		    };
+	    }
+
+	    private Lock[] locks;
+	    private Condition2[] conditions;
+	    private int[] turns;
+	},
+
+	new PairBenchmark("Communicator.speak/listen", "transfer",
+			  "transfers") {
+	    void setUp(int threads) {
+		communicator = new Communicator();
+	    }
+
+	    Runnable worker(final int index, final int calls) {
+		return new Runnable() {
+			public void run() {
+			    for (int i=0; i<calls; i++) {
+				if (index%2 == 0)
+				    communicator.speak(i);
+				else
+				    communicator.listen();
+			    }
+			}
+		    };
+	    }
+
+	    /** Only the speakers' calls are counted, one per transfer. */
+	    long operations(int threads, int calls, long switches) {
+		return (long) (threads/2) * calls;
+	    }
+
+	    private Communicator communicator;
+	},
+    };
+
+    private int ops;
+    private int[] threadCounts;
+
+    private long switches = 0;
+    private KThread lastRunning = null;
+}
@@ -0,0 +1,79 @@
+package nachos.ag;
+
+import nachos.machine.*;
+import nachos.security.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+
+/**
+ * An autograder that checkpoints a running user program and then restores
+ * the checkpoint next to it. Both copies should finish with the same result.
+ *
+ * <p>
+ * At the first timer interrupt at or after tick <tt>tick</tt> that finds a
+ * user thread running, the grader saves that thread's process to
+ * <tt>file</tt> with <tt>UserProcess.checkpoint()</tt>. A kernel thread
+ * then starts a new process from the file. For example, from the
+ * <tt>proj2</tt> directory:
+ *
+ * <pre>
+ * nachos -- nachos.ag.CheckpointGrader -# tick=70000,file=mm.ckpt -x matmult.coff
+ * </pre>
+ *
+ * <p>
+ * The checkpoint stays in the test directory, and <tt>nachos -x mm.ckpt</tt>
+ * resumes it again. A timer interrupt that arrives while the process is in
+ * a system call saves the registers from before the call, so the restored
+ * process makes the call again; checkpoint a program while it computes.
+ */
+public class CheckpointGrader extends AutoGrader {
+    void init() {
+	super.init();
+
+	tick = getIntegerArgument("tick");
+	fileName = getStringArgument("file");
+	Lib.assertTrue(tick >= 0 && fileName.endsWith(".ckpt"),
+		       "bad CheckpointGrader arguments");
+    }
+
+    void run() {
+	saved = new Semaphore(0);
+
+	KThread restorer = new KThread(new Runnable() {
+		public void run() {
+		    saved.P();
+
+		    UserProcess process = UserProcess.newUserProcess();
+		    Lib.assertTrue(process.execute(fileName, new String[] { }),
+				   "cannot restore " + fileName);
+		    System.out.println("restored " + fileName);
+		}
+	    });
+	restorer.setName("checkpoint restorer");
+	restorer.fork();
+
+	super.run();
+    }
+
+    public void timerInterrupt(Privilege privilege, long time) {
+	super.timerInterrupt(privilege, time);
+
+	if (checkpointed || time < tick ||
+	    !(KThread.currentThread() instanceof UThread))
+	    return;
+
+	checkpointed = true;
+
+	UserProcess process = ((UThread) KThread.currentThread()).process;
+	Lib.assertTrue(process.checkpoint(fileName),
+		       "cannot write " + fileName);
+	System.out.println("checkpoint " + fileName + " saved at tick " + time);
+
+	saved.V();
+    }
+
+    private int tick;
+    private String fileName;
+    private boolean checkpointed = false;
+    private Semaphore saved;
+}
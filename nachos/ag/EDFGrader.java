@@ -0,0 +1,165 @@
+package nachos.ag;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+/**
+ * An autograder that tests <tt>EDFScheduler</tt>. It runs periodic real-time
+ * threads alongside best-effort threads that never block, and checks that:
+ *
+ * <ul>
+ * <li>admission control admits threads up to a total density of 1, and
+ *     rejects the next one;
+ * <li>every job of an admitted thread finishes by the end of its period;
+ * <li>the density of real-time threads that finish, or that
+ *     <tt>clearRealTime()</tt> returns to the best-effort class, can be
+ *     admitted again.
+ * </ul>
+ *
+ * <p>
+ * Run it from the <tt>proj1</tt> directory with
+ * <tt>ThreadedKernel.scheduler = nachos.threads.EDFScheduler</tt> and the
+ * default <tt>EDFScheduler.maxUtilization</tt>:
+ *
+ * <pre>
+ * nachos -- nachos.ag.EDFGrader -# jobs=40
+ * </pre>
+ *
+ * <p>
+ * <tt>jobs</tt>, the number of jobs each real-time thread runs, is optional.
+ */
+public class EDFGrader extends AutoGrader {
+    void init() {
+	super.init();
+
+	jobs = hasArgument("jobs") ? getIntegerArgument("jobs") : 20;
+	Lib.assertTrue(jobs > 0, "jobs must be positive");
+    }
+
+    void run() {
+	Lib.assertTrue(ThreadedKernel.scheduler instanceof EDFScheduler,
+		       "EDFGrader needs ThreadedKernel.scheduler = " +
+		       "nachos.threads.EDFScheduler");
+	scheduler = (EDFScheduler) ThreadedKernel.scheduler;
+
+	for (int i=0; i<numBestEffort; i++) {
+	    KThread thread = new KThread(new Runnable() {
+		    public void run() {
+			while (!stopping)
+			    spin();
+		    }
+		});
+	    thread.setName("best effort " + i);
+	    thread.fork();
+	}
+
+	// the real-time threads of the first round leave by finishing
+	runRound(1);
+	Lib.assertTrue(utilization() == 0,
+		       "finished threads still hold density");
+
+	// a thread that leaves the real-time class returns its density
+	KThread thread = new KThread(new Runnable() {
+		public void run() {
+		}
+	    });
+	boolean intStatus = Machine.interrupt().disable();
+	Lib.assertTrue(scheduler.setRealTime(thread, period, period, period),
+		       "a thread with density 1 was not admitted");
+	scheduler.clearRealTime(thread);
+	Machine.interrupt().restore(intStatus);
+	Lib.assertTrue(utilization() == 0,
+		       "clearRealTime() did not return the density");
+	thread.fork();
+	thread.join();
+
+	runRound(2);
+
+	stopping = true;
+	System.out.println("EDF grader: " + numJobs + " jobs, " + numLate +
+			   " late");
+	Lib.assertTrue(numLate == 0, "jobs finished after their period");
+
+	kernel.terminate();
+    }
+
+    /**
+     * Offer the scheduler one more periodic thread than fits, run the ones it
+     * admits to completion, and check that it admitted all but the last.
+     */
+    private void runRound(int round) {
+	final Semaphore finished = new Semaphore(0);
+	int admitted = 0;
+
+	for (int i=0; i<=numRealTime; i++) {
+	    KThread thread = new KThread(new Runnable() {
+		    public void run() {
+			periodic();
+			finished.V();
+		    }
+		});
+	    thread.setName("real time " + round + "." + i);
+
+	    boolean intStatus = Machine.interrupt().disable();
+	    boolean ok = scheduler.setRealTime(thread, period, budget, period);
+	    Machine.interrupt().restore(intStatus);
+
+	    if (ok) {
+		admitted++;
+		thread.fork();
+	    }
+	}
+
+	System.out.println("EDF grader: round " + round + " admitted " +
+			   admitted + " of " + (numRealTime+1) + " threads");
+	Lib.assertTrue(admitted == numRealTime,
+		       "admission control admitted " + admitted + " threads");
+
+	for (int i=0; i<admitted; i++)
+	    finished.P();
+    }
+
+    /**
+     * Run <tt>jobs</tt> jobs, one per period, each working for <tt>work</tt>
+     * ticks, and count the ones that finish after their period ends.
+     */
+    private void periodic() {
+	long release = Machine.timer().getTime();
+
+	for (int i=0; i<jobs; i++) {
+	    long start = Machine.timer().getTime();
+	    while (Machine.timer().getTime() - start < work)
+		spin();
+
+	    numJobs++;
+	    if (Machine.timer().getTime() > release + period)
+		numLate++;
+
+	    release += period;
+	    ThreadedKernel.alarm.waitUntil(Math.max(1, release -
+						    Machine.timer().getTime()));
+	}
+    }
+
+    /** Let simulated time advance, and timer interrupts arrive. */
+    private static void spin() {
+	boolean intStatus = Machine.interrupt().disable();
+	Machine.interrupt().restore(intStatus);
+    }
+
+    private double utilization() {
+	boolean intStatus = Machine.interrupt().disable();
+	double utilization = scheduler.getUtilization();
+	Machine.interrupt().restore(intStatus);
+	return utilization;
+    }
+
+    private static final int numBestEffort = 4, numRealTime = 3;
+    /** Each real-time thread has a third of the processor. */
+    private static final long period = 6000, budget = 2000, work = 1000;
+
+    private EDFScheduler scheduler;
+    private int jobs;
+    private boolean stopping = false;
+    private int numJobs = 0, numLate = 0;
+}
@@ -5,7 +5,6 @@ package nachos.machine;
 import nachos.security.*;
 
 import java.io.EOFException;
-import java.util.Arrays;
 
 /**
  * A <tt>CoffSection</tt> manages a single section within a COFF executable.
@@ -180,8 +179,8 @@ public class CoffSection {
 	Lib.assertTrue(ppn>=0 && ppn<Machine.processor().getNumPhysPages());
 
 	int pageSize = Processor.pageSize;
-	byte[] memory = Machine.processor().getMemory();
-	int paddr = ppn*pageSize;
+	MainMemory memory = Machine.processor().getMemory();
+	long paddr = Processor.makePhysicalAddress(ppn, 0);
 	int faddr = contentOffset + spn*pageSize;
 	int initlen;
 
@@ -196,10 +195,16 @@ public class CoffSection {
 	else
 	    initlen = pageSize;
 
+	// the rest of the page is zero-filled
+	byte[] page = new byte[pageSize];
 	if (initlen > 0)
-	    Lib.strictReadFile(file, faddr, memory, paddr, initlen);
+	    Lib.strictReadFile(file, faddr, page, 0, initlen);
 
-	Arrays.fill(memory, paddr+initlen, paddr+pageSize, (byte) 0);
+	memory.write(paddr, page, 0, pageSize);
+
+	// decode code pages now, rather than while the program warms up
+	if (executable)
+	    Machine.processor().buildBlocks(ppn);
     }
 
     /** The COFF object to which this section belongs. */
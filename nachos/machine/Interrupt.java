@@ -4,9 +4,8 @@ package nachos.machine;
 
 import nachos.security.*;
 
-import java.util.TreeSet;
-import java.util.Iterator;
-import java.util.SortedSet;
+import java.util.Arrays;
+import java.util.Comparator;
 
 /**
  * The <tt>Interrupt</tt> class emulates low-level interrupt hardware. The
@@ -53,7 +52,9 @@ public final class Interrupt {
 	privilege.interrupt = new InterruptPrivilege();
 	
 	enabled = false;
-	pending = new TreeSet<PendingInterrupt>();
+	pending = new PendingQueue();
+
+	ticklessIdle = Config.getBoolean("Interrupt.ticklessIdle", true);
     }
 
     /**
@@ -120,21 +121,67 @@ public final class Interrupt {
 	return !enabled;
     }
 
+    /**
+     * Let simulated time pass until just before the next pending interrupt,
+     * because no thread can run until an interrupt handler readies one. Called
+     * with interrupts disabled, by the idle thread when the ready queue is
+     * empty; the caller re-enables interrupts afterwards, and the tick that
+     * causes makes the interrupt due.
+     *
+     * <p>
+     * An idle thread that just enables and disables interrupts in a loop
+     * would advance time one kernel tick at a time, switching contexts each
+     * time, until the interrupt is due. This charges all but the last of
+     * those ticks in one step, so the interrupt occurs at the same tick as it
+     * would have, but without the wasted host time. It does nothing if the
+     * <tt>Interrupt.ticklessIdle</tt> configuration key is <tt>false</tt>, if
+     * interrupt debugging is on (since every tick is printed), or if nothing
+     * is pending.
+     */
+    public void idle() {
+	Lib.assertTrue(disabled());
+
+	long ticks = ticksUntilNextInterrupt();
+	if (!ticklessIdle || ticks <= Stats.KernelTick || ticks == Long.MAX_VALUE)
+	    return;
+
+	// every tick but the one that makes the interrupt due
+	long skipped = (ticks-1) / Stats.KernelTick * Stats.KernelTick;
+
+	Stats stats = privilege.stats;
+	stats.kernelTicks += skipped;
+	stats.idleTicks += skipped;
+	stats.totalTicks += skipped;
+
+	lastTickInKernelMode = true;
+    }
+
     private void schedule(long when, String type, Runnable handler) {
 	Lib.assertTrue(when>0);
 	
 	long time = privilege.stats.totalTicks + when;
-	PendingInterrupt toOccur = new PendingInterrupt(time, type, handler);
 
 	Lib.debug(dbgInt,
 		  "Scheduling the " + type +
 		  " interrupt handler at time = " + time);
 
-	pending.add(toOccur);
+	pending.add(time, type, handler);
+    }
+
+    /**
+     * Tests whether the most recent tick was caused by a user instruction.
+     * While an interrupt handler runs, this tells whether it interrupted a
+     * user program or the kernel.
+     *
+     * @return	<tt>true</tt> if the last tick was a user tick.
+     */
+    boolean tickedInUserMode() {
+	return !lastTickInKernelMode;
     }
 
     private void tick(boolean inKernelMode) {
 	Stats stats = privilege.stats;
+	lastTickInKernelMode = inKernelMode;
 
 	if (inKernelMode) {
 	    stats.kernelTicks += Stats.KernelTick;
@@ -153,6 +200,17 @@ public final class Interrupt {
 	enabled = true;
     }
 
+    private long ticksUntilNextInterrupt() {
+	// interrupt debugging prints every tick, so no tick can be skipped
+	if (Lib.test(dbgInt))
+	    return 0;
+	
+	if (pending.isEmpty())
+	    return Long.MAX_VALUE;
+
+	return Math.max(0, pending.firstTime() - privilege.stats.totalTicks);
+    }
+
     private void checkIfDue() {
 	long time = privilege.stats.totalTicks;
 
@@ -161,27 +219,23 @@ public final class Interrupt {
 	if (Lib.test(dbgInt))
 	    print();
 
-	if (pending.isEmpty())
-	    return;
-
-	if (((PendingInterrupt) pending.first()).time > time)
+	// an empty queue's first time is Long.MAX_VALUE
+	if (pending.firstTime() > time)
 	    return;
 
 	Lib.debug(dbgInt, "Invoking interrupt handlers at time = " + time);
 	
-	while (!pending.isEmpty() &&
-	       ((PendingInterrupt) pending.first()).time <= time) {
-	    PendingInterrupt next = (PendingInterrupt) pending.first();
-	    pending.remove(next);
-
-	    Lib.assertTrue(next.time <= time);
+	while (pending.firstTime() <= time) {
+	    String type = pending.firstType();
+	    Runnable handler = pending.firstHandler();
+	    pending.removeFirst();
 
 	    if (privilege.processor != null)
 		privilege.processor.flushPipe();
 
-	    Lib.debug(dbgInt, "  " + next.type);
+	    Lib.debug(dbgInt, "  " + type);
 			
-	    next.handler.run();
+	    handler.run();
 	}
 
 	Lib.debug(dbgInt, "  (end of list)");
@@ -192,52 +246,159 @@ public final class Interrupt {
 			   + ", interrupts " + (enabled ? "on" : "off"));
 	System.out.println("Pending interrupts:");
 
-	for (Iterator i=pending.iterator(); i.hasNext(); ) {
-	    PendingInterrupt toOccur = (PendingInterrupt) i.next();
-	    System.out.println("  " + toOccur.type +
-			       ", scheduled at " + toOccur.time);
-	}
+	pending.print();
 
 	System.out.println("  (end of list)");
     }
 
-    private class PendingInterrupt implements Comparable {
-	PendingInterrupt(long time, String type, Runnable handler) {
-	    this.time = time;
-	    this.type = type;
-	    this.handler = handler;
-	    this.id = numPendingInterruptsCreated++;
+    /**
+     * The pending interrupts, in a binary min-heap ordered by time and then
+     * by the order in which they were scheduled. Each interrupt is stored in
+     * parallel arrays rather than as an object, so scheduling one allocates
+     * nothing (once the arrays are large enough), and the time of the next
+     * interrupt is always at index 0.
+     */
+    private static class PendingQueue {
+	boolean isEmpty() {
+	    return size == 0;
+	}
+
+	/**
+	 * Return the time of the next interrupt, or <tt>Long.MAX_VALUE</tt>
+	 * if there is none.
+	 */
+	long firstTime() {
+	    return (size == 0) ? Long.MAX_VALUE : times[0];
 	}
 
-	public int compareTo(Object o) {
-	    PendingInterrupt toOccur = (PendingInterrupt) o;
+	String firstType() {
+	    Lib.assertTrue(size > 0);
+	    return types[0];
+	}
 
-	    // can't return 0 for unequal objects, so check all fields
-	    if (time < toOccur.time)
-		return -1;
-	    else if (time > toOccur.time)
-		return 1;
-	    else if (id < toOccur.id)
-		return -1;
-	    else if (id > toOccur.id)
-		return 1;
-	    else
-		return 0;
+	Runnable firstHandler() {
+	    Lib.assertTrue(size > 0);
+	    return handlers[0];
 	}
 
-	long time;
-	String type;
-	Runnable handler;
+	void add(long time, String type, Runnable handler) {
+	    if (size == times.length)
+		grow();
+
+	    long id = numPendingInterruptsCreated++;
+
+	    // sift the hole at the end up to where the new interrupt belongs
+	    int i = size++;
+	    while (i > 0) {
+		int parent = (i-1) / 2;
+		if (!before(time, id, parent))
+		    break;
+
+		move(parent, i);
+		i = parent;
+	    }
 
-	private long id;
+	    set(i, time, id, type, handler);
+	}
+
+	void removeFirst() {
+	    Lib.assertTrue(size > 0);
+
+	    int last = --size;
+	    long time = times[last];
+	    long id = ids[last];
+	    String type = types[last];
+	    Runnable handler = handlers[last];
+
+	    types[last] = null;
+	    handlers[last] = null;
+
+	    if (last == 0)
+		return;
+
+	    // sift the hole at the root down to where the last interrupt
+	    // belongs
+	    int i = 0;
+	    while (true) {
+		int child = 2*i + 1;
+		if (child >= size)
+		    break;
+		if (child+1 < size && before(times[child+1], ids[child+1], child))
+		    child++;
+		if (!before(times[child], ids[child], time, id))
+		    break;
+
+		move(child, i);
+		i = child;
+	    }
+
+	    set(i, time, id, type, handler);
+	}
+
+	/** Print the pending interrupts in the order they will occur. */
+	void print() {
+	    Integer[] order = new Integer[size];
+	    for (int i=0; i<size; i++)
+		order[i] = i;
+
+	    Arrays.sort(order, new Comparator<Integer>() {
+		    public int compare(Integer a, Integer b) {
+			return before(times[a], ids[a], b) ? -1 : 1;
+		    }
+		});
+
+	    for (int i=0; i<size; i++)
+		System.out.println("  " + types[order[i]] +
+				   ", scheduled at " + times[order[i]]);
+	}
+
+	private boolean before(long time, long id, int index) {
+	    return before(time, id, times[index], ids[index]);
+	}
+
+	private static boolean before(long time1, long id1,
+				      long time2, long id2) {
+	    return (time1 < time2 || (time1 == time2 && id1 < id2));
+	}
+
+	private void move(int from, int to) {
+	    set(to, times[from], ids[from], types[from], handlers[from]);
+	}
+
+	private void set(int index, long time, long id, String type,
+			 Runnable handler) {
+	    times[index] = time;
+	    ids[index] = id;
+	    types[index] = type;
+	    handlers[index] = handler;
+	}
+
+	private void grow() {
+	    int capacity = times.length * 2;
+
+	    times = Arrays.copyOf(times, capacity);
+	    ids = Arrays.copyOf(ids, capacity);
+	    types = Arrays.copyOf(types, capacity);
+	    handlers = Arrays.copyOf(handlers, capacity);
+	}
+
+	private int size = 0;
+	private long[] times = new long[initialCapacity];
+	private long[] ids = new long[initialCapacity];
+	private String[] types = new String[initialCapacity];
+	private Runnable[] handlers = new Runnable[initialCapacity];
+
+	private long numPendingInterruptsCreated = 0;
+
+	private static final int initialCapacity = 16;
     }
-    
-    private long numPendingInterruptsCreated = 0;
 
     private Privilege privilege;
 
     private boolean enabled;
-    private TreeSet<PendingInterrupt> pending;
+    private boolean ticklessIdle;
+    private boolean lastTickInKernelMode = true;
+    private PendingQueue pending;
 
     private static final char dbgInt = 'i';
 
@@ -249,5 +410,9 @@ public final class Interrupt {
 	public void tick(boolean inKernelMode) {
 	    Interrupt.this.tick(inKernelMode);
 	}
+
+	public long ticksUntilNextInterrupt() {
+	    return Interrupt.this.ticksUntilNextInterrupt();
+	}
     }
 }
@@ -0,0 +1,272 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.LinkedList;
+
+/**
+ * A journal of the nondeterministic inputs to the machine, used to record a
+ * run and later replay it exactly.
+ *
+ * <p>
+ * Given the same inputs, the simulation is deterministic: simulated time only
+ * advances through interrupts, and only one Nachos thread runs at a time. The
+ * inputs are the random number generator's seed (which decides timer jitter
+ * and network packet drops, as well as anything the kernel draws from
+ * <tt>Lib.random()</tt>), the keys typed at the console, and the packets that
+ * arrive over the network. When recording, each console key and packet is
+ * logged with the tick at which the machine consumed it. When replaying, the
+ * same inputs are delivered at the same ticks, the real console and network
+ * are ignored, and outgoing packets are not actually sent.
+ *
+ * <p>
+ * A replay that asks for input later than the journal says it was consumed
+ * has diverged from the recorded run (for example, because the kernel was
+ * changed), and stops with an assertion failure.
+ *
+ * <p>
+ * The journal is a binary file: a header holding the random seed, followed
+ * by one record per input, each holding its kind, the ticks since the
+ * previous record, and its data.
+ */
+public final class Journal {
+    /**
+     * Create a new journal file and record this run's inputs into it.
+     *
+     * @param	fileName	the name of the journal file.
+     * @param	randomSeed	the seed for the random number generator.
+     */
+    Journal(String fileName, long randomSeed) {
+	replaying = false;
+	this.fileName = fileName;
+	this.randomSeed = randomSeed;
+
+	try {
+	    out = new DataOutputStream(new BufferedOutputStream(
+			new FileOutputStream(fileName)));
+	    out.writeInt(magic);
+	    out.writeLong(randomSeed);
+	    out.flush();
+	}
+	catch (IOException e) {
+	    Lib.assertNotReached("cannot write journal " + fileName);
+	}
+    }
+
+    /**
+     * Read a journal recorded earlier, in order to replay its inputs.
+     *
+     * @param	fileName	the name of the journal file.
+     */
+    Journal(String fileName) {
+	replaying = true;
+
+	try {
+	    DataInputStream in = new DataInputStream(new BufferedInputStream(
+			new FileInputStream(fileName)));
+
+	    Lib.assertTrue(in.readInt() == magic, "not a journal: " + fileName);
+	    randomSeed = in.readLong();
+
+	    long time = 0;
+	    while (true) {
+		int kind = in.read();
+		if (kind == -1)
+		    break;
+
+		time += readVarLong(in);
+
+		if (kind == kindConsole) {
+		    consoleInputs.add(new Input(time, in.readUnsignedByte(),
+						null));
+		}
+		else {
+		    Lib.assertTrue(kind == kindPacket, "corrupt journal");
+
+		    byte[] contents = new byte[(int) readVarLong(in)];
+		    in.readFully(contents);
+		    packetInputs.add(new Input(time, 0, contents));
+		}
+	    }
+
+	    in.close();
+	}
+	catch (EOFException e) {
+	    Lib.assertNotReached("truncated journal " + fileName);
+	}
+	catch (IOException e) {
+	    Lib.assertNotReached("cannot read journal " + fileName);
+	}
+    }
+
+    /**
+     * Test whether this journal is replaying a recorded run, rather than
+     * recording this one.
+     *
+     * @return	<tt>true</tt> if replaying.
+     */
+    public boolean isReplaying() {
+	return replaying;
+    }
+
+    /**
+     * Return the random seed of the recorded run.
+     *
+     * @return	the seed for the random number generator.
+     */
+    long getRandomSeed() {
+	return randomSeed;
+    }
+
+    /**
+     * Record a byte read from the console.
+     *
+     * @param	value	the byte read.
+     */
+    void recordConsole(int value) {
+	Lib.assertTrue(!replaying);
+
+	try {
+	    writeHeader(kindConsole);
+	    out.write(value);
+	    out.flush();
+	}
+	catch (IOException e) {
+	    Lib.assertNotReached("cannot write journal " + fileName);
+	}
+    }
+
+    /**
+     * Return the byte the console read at the current time in the recorded
+     * run.
+     *
+     * @return	the byte read, or <tt>-1</tt> if there was none.
+     */
+    int replayConsole() {
+	Input input = nextInput(consoleInputs);
+	return (input == null) ? -1 : input.value;
+    }
+
+    /**
+     * Record a packet received from the network.
+     *
+     * @param	contents	the bytes of the packet.
+     */
+    void recordPacket(byte[] contents) {
+	Lib.assertTrue(!replaying);
+
+	try {
+	    writeHeader(kindPacket);
+	    writeVarLong(contents.length);
+	    out.write(contents);
+	    out.flush();
+	}
+	catch (IOException e) {
+	    Lib.assertNotReached("cannot write journal " + fileName);
+	}
+    }
+
+    /**
+     * Return the packet the network delivered at the current time in the
+     * recorded run.
+     *
+     * @return	the bytes of the packet, or <tt>null</tt> if there was none.
+     */
+    byte[] replayPacket() {
+	Input input = nextInput(packetInputs);
+	return (input == null) ? null : input.contents;
+    }
+
+    /**
+     * Finish writing the journal. Called when the machine halts.
+     */
+    void close() {
+	if (replaying)
+	    return;
+
+	try {
+	    out.close();
+	}
+	catch (IOException e) {
+	    Lib.assertNotReached("cannot write journal " + fileName);
+	}
+    }
+
+    private Input nextInput(LinkedList<Input> inputs) {
+	Lib.assertTrue(replaying);
+
+	long time = Machine.timer().getTime();
+
+	Input input = inputs.peek();
+	if (input == null || input.time > time)
+	    return null;
+
+	Lib.assertTrue(input.time == time,
+		       "replay diverged: input due at tick " + input.time +
+		       " was not consumed until tick " + time);
+
+	return inputs.remove();
+    }
+
+    private void writeHeader(int kind) throws IOException {
+	long time = Machine.timer().getTime();
+
+	out.write(kind);
+	writeVarLong(time - lastTime);
+	lastTime = time;
+    }
+
+    /** Write a non-negative value 7 bits at a time, low bits first. */
+    private void writeVarLong(long value) throws IOException {
+	while ((value & ~0x7FL) != 0) {
+	    out.write((int) (value & 0x7F) | 0x80);
+	    value >>>= 7;
+	}
+	out.write((int) value);
+    }
+
+    private static long readVarLong(DataInputStream in) throws IOException {
+	long value = 0;
+	for (int shift=0; ; shift+=7) {
+	    int b = in.readUnsignedByte();
+	    value |= (long) (b & 0x7F) << shift;
+	    if ((b & 0x80) == 0)
+		return value;
+	}
+    }
+
+    private static class Input {
+	Input(long time, int value, byte[] contents) {
+	    this.time = time;
+	    this.value = value;
+	    this.contents = contents;
+	}
+
+	long time;
+	int value;
+	byte[] contents;
+    }
+
+    private boolean replaying;
+    private String fileName;
+    private long randomSeed;
+
+    private DataOutputStream out = null;
+    private long lastTime = 0;
+
+    private LinkedList<Input> consoleInputs = new LinkedList<Input>();
+    private LinkedList<Input> packetInputs = new LinkedList<Input>();
+
+    /** "NJNL", the first word of a journal file. */
+    private static final int magic = 0x4E4A4E4C;
+
+    private static final int kindConsole = 1, kindPacket = 2;
+}
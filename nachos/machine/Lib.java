@@ -444,6 +444,21 @@ public final class Lib {
 	return result;
     }
 
+    /**
+     * Creates a padded upper-case string representation of the long argument
+     * in base 16, padding to at most the specified number of digits.
+     *
+     * @param	l	a long.
+     * @param	pad	the minimum number of hex digits to pad to.
+     * @return	a padded upper-case string representation in base 16.
+     */
+    public static String toHexString(long l, int pad) {
+	String result = Long.toHexString(l).toUpperCase();
+	while (result.length() < pad)
+	    result = "0" + result;
+	return result;
+    }
+
     /**
      * Divide two non-negative integers, round the quotient up to the nearest
      * integer, and return it.
@@ -97,6 +97,11 @@ public final class Machine {
     public static void halt() {
 	System.out.print("Machine halting!\n\n");
 	stats.print();
+
+	if (profiler != null)
+	    profiler.report();
+	if (journal != null)
+	    journal.close();
 	terminate();
     }
 
@@ -143,6 +148,14 @@ public final class Machine {
 			Lib.assertNotReached("bad value for -s switch");
 		    }
 		}
+		else if (arg.equals("-r")) {
+		    Lib.assertTrue(i < args.length, "switch without argument");
+		    recordFileName = args[i++];
+		}
+		else if (arg.equals("-p")) {
+		    Lib.assertTrue(i < args.length, "switch without argument");
+		    replayFileName = args[i++];
+		}
 		else if (arg.equals("-x")) {
 		    Lib.assertTrue(i < args.length, "switch without argument");
 		    shellProgramName = args[i++];		    
@@ -163,6 +176,18 @@ public final class Machine {
 	    }
 	}
 
+	Lib.assertTrue(recordFileName == null || replayFileName == null,
+		       "cannot record and replay at the same time");
+
+	// the journal files are opened before the security manager is enabled
+	if (replayFileName != null) {
+	    journal = new Journal(replayFileName);
+	    randomSeed = journal.getRandomSeed();
+	}
+	else if (recordFileName != null) {
+	    journal = new Journal(recordFileName, randomSeed);
+	}
+
 	Lib.seedRandom(randomSeed);
     }
 
@@ -179,6 +204,9 @@ public final class Machine {
 	    processor = new Processor(privilege, numPhysPages);
 	}				      
 
+	if (processor != null && Config.getBoolean("Machine.profiler", false))
+	    profiler = new Profiler(privilege);
+
 	if (Config.getBoolean("Machine.console"))
 	    console = new StandardConsole(privilege);
 
@@ -323,6 +351,21 @@ public final class Machine {
      */     
     public static Processor processor() { return processor; }
     
+    /**
+     * Return the user program profiler.
+     *
+     * @return	the profiler, or <tt>null</tt> if profiling is not enabled.
+     */
+    public static Profiler profiler() { return profiler; }
+
+    /**
+     * Return the journal this run is being recorded in or replayed from.
+     *
+     * @return	the journal, or <tt>null</tt> if neither recording nor
+     *		replaying.
+     */
+    public static Journal journal() { return journal; }
+
     /**
      * Return the hardware console.
      *
@@ -355,6 +398,8 @@ public final class Machine {
     private static Timer timer = null;
     private static ElevatorBank bank = null;
     private static Processor processor = null;
+    private static Profiler profiler = null;
+    private static Journal journal = null;
     private static SerialConsole console = null;
     private static FileSystem stubFileSystem = null;
     private static NetworkLink networkLink = null;
@@ -412,6 +457,7 @@ public final class Machine {
 
     private static int numPhysPages = -1;
     private static long randomSeed = 0;
+    private static String recordFileName = null, replayFileName = null;
 
     private static File baseDirectory, nachosDirectory, testDirectory;
     private static String configFileName = "nachos.conf";
@@ -433,6 +479,14 @@ public final class Machine {
 	"\t\tSpecify the seed for the random number generator (seed is a\n" +
 	"\t\tlong).\n" +
 	"\n" +
+	"\t-r <journal>\n" +
+	"\t\tRecord the random seed, console input and network input in a\n" +
+	"\t\tjournal file, so this run can be replayed exactly.\n" +
+	"\n" +
+	"\t-p <journal>\n" +
+	"\t\tReplay a run recorded with -r, instead of taking the seed and\n" +
+	"\t\tinput from -s, the console and the network.\n" +
+	"\n" +
 	"\t-x <program>\n" +
 	"\t\tSpecify a program that UserKernel.run() should execute,\n" +
 	"\t\tinstead of the value of the configuration variable\n" +
@@ -0,0 +1,196 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * The physical memory attached to a <tt>Processor</tt>. Physical addresses
+ * are <tt>long</tt>s, so the size of memory is limited only by the number of
+ * physical pages (and the host), not by the size of a Java array.
+ *
+ * <p>
+ * Memory is stored outside the Java heap, in direct byte buffers of at most
+ * <tt>chunkSize</tt> bytes each. Since <tt>chunkSize</tt> is a multiple of
+ * the page size, an aligned word, or any range within a single page, always
+ * lies within a single buffer. All multi-byte values are little-endian, and
+ * <tt>read()</tt> sign-extends like <tt>Lib.bytesToInt()</tt>.
+ */
+public final class MainMemory {
+    /**
+     * Allocate a new physical memory, initialized to zero.
+     *
+     * @param	size	the size of the memory, in bytes.
+     */
+    MainMemory(long size) {
+	Lib.assertTrue(size >= 0);
+
+	this.size = size;
+
+	chunks = new ByteBuffer[(int) ((size + chunkSize - 1) >>> chunkShift)];
+	for (int i=0; i<chunks.length; i++) {
+	    long length = Math.min(chunkSize, size - ((long) i << chunkShift));
+
+	    chunks[i] = ByteBuffer.allocateDirect((int) length);
+	    chunks[i].order(ByteOrder.LITTLE_ENDIAN);
+	}
+    }
+
+    /**
+     * Return the size of this memory.
+     *
+     * @return	the size of this memory, in bytes.
+     */
+    public long getSize() {
+	return size;
+    }
+
+    /**
+     * Read the aligned word at physical address <i>paddr</i>.
+     *
+     * @param	paddr	the physical address of the word.
+     * @return	the word at that address.
+     */
+    public int readInt(long paddr) {
+	return chunk(paddr).getInt(chunkOffset(paddr));
+    }
+
+    /**
+     * Read <i>size</i> (1, 2, or 4) bytes at physical address <i>paddr</i>,
+     * which must be aligned on a <i>size</i>-byte boundary.
+     *
+     * @param	paddr	the physical address to read from.
+     * @param	size	the number of bytes to read.
+     * @return	the value read, sign-extended to 32 bits.
+     */
+    public int read(long paddr, int size) {
+	ByteBuffer chunk = chunk(paddr);
+	int offset = chunkOffset(paddr);
+
+	switch (size) {
+	case 1:
+	    return chunk.get(offset);
+	case 2:
+	    return chunk.getShort(offset);
+	case 4:
+	    return chunk.getInt(offset);
+	default:
+	    Lib.assertNotReached();
+	    return -1;
+	}
+    }
+
+    /**
+     * Write the low <i>size</i> (1, 2, or 4) bytes of <i>value</i> at
+     * physical address <i>paddr</i>, which must be aligned on a
+     * <i>size</i>-byte boundary.
+     *
+     * @param	paddr	the physical address to write to.
+     * @param	size	the number of bytes to write.
+     * @param	value	the value to write.
+     */
+    public void write(long paddr, int size, int value) {
+	ByteBuffer chunk = chunk(paddr);
+	int offset = chunkOffset(paddr);
+
+	switch (size) {
+	case 1:
+	    chunk.put(offset, (byte) value);
+	    break;
+	case 2:
+	    chunk.putShort(offset, (short) value);
+	    break;
+	case 4:
+	    chunk.putInt(offset, value);
+	    break;
+	default:
+	    Lib.assertNotReached();
+	}
+    }
+
+    /**
+     * Copy <i>length</i> bytes starting at physical address <i>paddr</i> into
+     * <i>data</i>.
+     *
+     * @param	paddr	the first physical address to read from.
+     * @param	data	the array where the data will be stored.
+     * @param	offset	the first byte to write in the array.
+     * @param	length	the number of bytes to copy.
+     */
+    public void read(long paddr, byte[] data, int offset, int length) {
+	checkRange(paddr, length);
+
+	while (length > 0) {
+	    ByteBuffer chunk = chunk(paddr).duplicate();
+	    chunk.position(chunkOffset(paddr));
+
+	    int amount = Math.min(length, chunk.remaining());
+	    chunk.get(data, offset, amount);
+
+	    paddr += amount;
+	    offset += amount;
+	    length -= amount;
+	}
+    }
+
+    /**
+     * Copy <i>length</i> bytes from <i>data</i> into memory, starting at
+     * physical address <i>paddr</i>.
+     *
+     * @param	paddr	the first physical address to write to.
+     * @param	data	the array containing the data to copy.
+     * @param	offset	the first byte to copy from the array.
+     * @param	length	the number of bytes to copy.
+     */
+    public void write(long paddr, byte[] data, int offset, int length) {
+	checkRange(paddr, length);
+
+	while (length > 0) {
+	    ByteBuffer chunk = chunk(paddr).duplicate();
+	    chunk.position(chunkOffset(paddr));
+
+	    int amount = Math.min(length, chunk.remaining());
+	    chunk.put(data, offset, amount);
+
+	    paddr += amount;
+	    offset += amount;
+	    length -= amount;
+	}
+    }
+
+    /**
+     * Set <i>length</i> bytes starting at physical address <i>paddr</i> to
+     * <i>value</i>.
+     *
+     * @param	paddr	the first physical address to fill.
+     * @param	length	the number of bytes to fill.
+     * @param	value	the value to store in each byte.
+     */
+    public void fill(long paddr, int length, byte value) {
+	checkRange(paddr, length);
+
+	for (; length > 0; paddr++, length--)
+	    chunk(paddr).put(chunkOffset(paddr), value);
+    }
+
+    private void checkRange(long paddr, int length) {
+	Lib.assertTrue(paddr >= 0 && length >= 0 && paddr + length <= size);
+    }
+
+    private ByteBuffer chunk(long paddr) {
+	return chunks[(int) (paddr >>> chunkShift)];
+    }
+
+    private static int chunkOffset(long paddr) {
+	return (int) (paddr & (chunkSize-1));
+    }
+
+    private long size;
+    private ByteBuffer[] chunks;
+
+    /** Log base 2 of the largest direct buffer used to hold memory. */
+    private static final int chunkShift = 30;
+    /** The largest direct buffer used to hold memory, in bytes. */
+    private static final long chunkSize = 1L << chunkShift;
+}
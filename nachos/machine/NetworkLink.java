@@ -10,6 +10,7 @@ import java.net.DatagramPacket;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.net.SocketException;
+import java.util.LinkedList;
 
 /**
  * A full-duplex network link. Provides ordered, unreliable delivery of
@@ -57,6 +58,16 @@ import java.net.SocketException;
  * for a network layer in Nachos. This should simplify your design for the
  * session/transport layer, since you can assume packets never arrive out of
  * order.
+ *
+ * <p>
+ * The link can coalesce interrupts. It buffers up to
+ * <tt>NetworkLink.coalesceCount</tt> packets in each direction (the default
+ * is 1, which means no coalescing). A receive interrupt is raised when the
+ * receive buffer fills, or when its oldest packet has waited
+ * <tt>NetworkLink.coalesceTicks</tt> ticks. A send interrupt is raised when
+ * the send buffer empties, when that many packets have been sent since the
+ * last send interrupt, or when the oldest of those was sent that many ticks
+ * ago.
  */
 public class NetworkLink {
     /**
@@ -87,6 +98,11 @@ public class NetworkLink {
 	reliability = Config.getDouble("NetworkLink.reliability");
 	Lib.assertTrue(reliability > 0 && reliability <= 1.0);
 
+	coalesceCount = Config.getInteger("NetworkLink.coalesceCount", 1);
+	coalesceTicks = Config.getInteger("NetworkLink.coalesceTicks",
+					  4*Stats.NetworkTime);
+	Lib.assertTrue(coalesceCount >= 1 && coalesceTicks >= 0);
+
 	socket = null;
 
 	for (linkAddress=0;linkAddress<Packet.linkAddressLimit;linkAddress++) {
@@ -116,6 +132,10 @@ public class NetworkLink {
 	
 	scheduleReceiveInterrupt();
 
+	// when replaying, packets come from the journal instead
+	if (Machine.journal() != null && Machine.journal().isReplaying())
+	    return;
+
 	Thread receiveThread = new Thread(new Runnable() {
 		public void run() { receiveLoop(); }
 	    });
@@ -136,13 +156,14 @@ public class NetworkLink {
      * Set this link's receive and send interrupt handlers.
      *
      * <p>
-     * The receive interrupt handler is called every time a packet arrives
-     * and can be read using <tt>receive()</tt>.
+     * The receive interrupt handler is called when one or more packets have
+     * arrived and can be read using <tt>receive()</tt>. The link does not
+     * receive any more packets until all of them have been read.
      *
      * <p>
-     * The send interrupt handler is called every time a packet sent with
-     * <tt>send()</tt> is finished being sent. This means that another
-     * packet can be sent.
+     * The send interrupt handler is called when one or more packets sent with
+     * <tt>send()</tt> are finished being sent. This means that more packets
+     * can be sent.
      *
      * @param	receiveInterruptHandler	the callback to call when a packet
      *					arrives.
@@ -161,12 +182,25 @@ public class NetworkLink {
     }
 
     private synchronized void receiveInterrupt() {
-	Lib.assertTrue(incomingPacket == null);
+	Lib.assertTrue(!receivePending &&
+		       incomingPackets.size() < coalesceCount);
+
+	long time = privilege.stats.totalTicks;
+
+	Journal journal = Machine.journal();
+	if (journal != null && journal.isReplaying())
+	    incomingBytes = journal.replayPacket();
+	else if (journal != null && incomingBytes != null)
+	    journal.recordPacket(incomingBytes);
 
 	if (incomingBytes != null) {
 	    if (Machine.autoGrader().canReceivePacket(privilege)) {
 		try {
-		    incomingPacket = new Packet(incomingBytes);
+		    Packet p = new Packet(incomingBytes);
+
+		    if (incomingPackets.isEmpty())
+			firstIncomingTime = time;
+		    incomingPackets.add(p);
 
 		    privilege.stats.numPacketsReceived++;
 		}
@@ -176,10 +210,15 @@ public class NetworkLink {
 
 	    incomingBytes = null;
 	    notify();
+	}
+
+	if (incomingPackets.size() == coalesceCount ||
+	    (!incomingPackets.isEmpty() &&
+	     time - firstIncomingTime >= coalesceTicks)) {
+	    // stop receiving until the handler has read every packet
+	    receivePending = true;
 
-	    if (incomingPacket == null)
-		scheduleReceiveInterrupt();
-	    else if (receiveInterruptHandler != null)
+	    if (receiveInterruptHandler != null)
 		receiveInterruptHandler.run();
 	}
 	else {
@@ -194,10 +233,10 @@ public class NetworkLink {
      * 		available.
      */
     public Packet receive() {
-	Packet p = incomingPacket;
+	Packet p = incomingPackets.poll();
 	
-	if (incomingPacket != null) {
-	    incomingPacket = null;
+	if (incomingPackets.isEmpty() && receivePending) {
+	    receivePending = false;
 	    scheduleReceiveInterrupt();
 	}
 
@@ -245,7 +284,11 @@ public class NetworkLink {
     }
 
     private void sendInterrupt() {
-	Lib.assertTrue(outgoingPacket != null);
+	Lib.assertTrue(!outgoingPackets.isEmpty());
+
+	long time = privilege.stats.totalTicks;
+
+	outgoingPacket = outgoingPackets.removeFirst();
 
 	// randomly drop packets, according to its reliability
 	if (Machine.autoGrader().canSendPacket(privilege) &&
@@ -259,8 +302,19 @@ public class NetworkLink {
 	    outgoingPacket = null;
 	}
 
-	if (sendInterruptHandler != null)
-	    sendInterruptHandler.run();
+	if (numUnreportedSends++ == 0)
+	    firstUnreportedSendTime = time;
+
+	if (!outgoingPackets.isEmpty())
+	    scheduleSendInterrupt();
+
+	if (outgoingPackets.isEmpty() || numUnreportedSends == coalesceCount ||
+	    time - firstUnreportedSendTime >= coalesceTicks) {
+	    numUnreportedSends = 0;
+
+	    if (sendInterruptHandler != null)
+		sendInterruptHandler.run();
+	}
     }
 
     private void sendPacket() {
@@ -268,8 +322,11 @@ public class NetworkLink {
 	outgoingPacket = null;
 	
 	try {
-	    socket.send(new DatagramPacket(p.packetBytes, p.packetBytes.length,
-					   localHost, portBase+p.dstLink));
+	    // a replayed run's packets were already sent by the recorded run
+	    if (Machine.journal() == null || !Machine.journal().isReplaying())
+		socket.send(new DatagramPacket(p.packetBytes,
+					       p.packetBytes.length,
+					       localHost, portBase+p.dstLink));
 
 	    privilege.stats.numPacketsSent++;
 	}
@@ -278,16 +335,27 @@ public class NetworkLink {
     }
 
     /**
-     * Send another packet. If a packet is already being sent, the result is
-     * not defined.
+     * Send another packet. This may only be called if <tt>canSend()</tt>
+     * returns <tt>true</tt>.
      *
      * @param	pkt	the packet to send.
      */       
     public void send(Packet pkt) {
-	if (outgoingPacket == null)
+	Lib.assertTrue(outgoingPackets.size() < coalesceCount);
+
+	outgoingPackets.add(pkt);
+
+	if (outgoingPackets.size() == 1)
 	    scheduleSendInterrupt();
-	
-	outgoingPacket = pkt;
+    }
+
+    /**
+     * Test whether the link has room to buffer another packet to send.
+     *
+     * @return	<tt>true</tt> if <tt>send()</tt> can be called.
+     */
+    public boolean canSend() {
+	return outgoingPackets.size() < coalesceCount;
     }
 
     private static final int hash;
@@ -321,9 +389,18 @@ public class NetworkLink {
     private byte linkAddress;
     private double reliability;
 
+    private int coalesceCount;
+    private long coalesceTicks;
+
     private byte[] incomingBytes = null;
-    private Packet incomingPacket = null;
+    private LinkedList<Packet> incomingPackets = new LinkedList<Packet>();
+    private long firstIncomingTime;
+    private boolean receivePending = false;
+
+    private LinkedList<Packet> outgoingPackets = new LinkedList<Packet>();
     private Packet outgoingPacket = null;
+    private int numUnreportedSends = 0;
+    private long firstUnreportedSendTime;
 
     private boolean sendBusy = false;
 }
@@ -45,7 +45,11 @@ public final class Processor {
 	for (int i=0; i<numUserRegisters; i++)
 	    registers[i] = 0;
 
-	mainMemory = new byte[pageSize * numPhysPages];
+	mainMemory = new MainMemory((long) pageSize * numPhysPages);
+	decodedPages = new Decoded[numPhysPages][];
+
+	// the translation caches bypass the trace output of translate()
+	useTranslationCache = !Lib.test(dbgProcessor);
 
 	if (usingTLB) {
 	    translations = new TranslationEntry[tlbSize];
@@ -91,6 +95,32 @@ public final class Processor {
 
 	Machine.autoGrader().runProcessor(privilege);
 
+	// select the interpreter once: the traced one prints every step, the
+	// untraced one has no debug checks at all, and runs in batches
+	boolean traced = (Lib.test(dbgProcessor) ||
+			  Lib.test(dbgDisassemble) ||
+			  Lib.test(dbgFullDisassemble));
+
+	if (traced)
+	    runTraced();
+
+	while (true) {
+	    try {
+		runBatch();
+	    }
+	    catch (MipsException e) {
+		e.handle();
+	    }
+
+	    privilege.interrupt.tick(false);
+	}
+    }
+
+    /**
+     * Execute instructions one at a time, printing each one as directed by
+     * the debug flags. Never returns.
+     */
+    private void runTraced() {
 	Instruction inst = new Instruction();
 	
 	while (true) {
@@ -105,6 +135,374 @@ public final class Processor {
 	}
     }
 
+    /**
+     * Execute instructions starting at the current PC until the next pending
+     * interrupt is due, or until one of them causes an exception (which
+     * includes every system call).
+     *
+     * <p>
+     * The simulated time is advanced in bulk for every instruction but the
+     * last one executed (or the one that caused an exception), which the
+     * caller charges with a normal <tt>tick()</tt>. Since no interrupt can
+     * become due before that last tick, and nothing but an interrupt handler
+     * or an exception handler can run kernel code in between, the result is
+     * tick-for-tick identical to ticking after every instruction. If the
+     * next interrupt is already due, or interrupts are being debugged, this
+     * executes a single instruction.
+     *
+     * @exception	MipsException	if an instruction caused an exception.
+     */
+    private void runBatch() throws MipsException {
+	long limit =
+	    privilege.interrupt.ticksUntilNextInterrupt() / Stats.UserTick;
+	if (limit > maxBatchSize)
+	    limit = maxBatchSize;
+
+	batchDone = 0;
+	try {
+	    do {
+		runHotBlock((int) limit - batchDone);
+	    } while (batchDone < limit);
+	}
+	catch (MipsException e) {
+	    chargeUserTicks(batchDone);
+	    throw e;
+	}
+
+	chargeUserTicks(batchDone-1);
+    }
+
+    /**
+     * Execute the instruction at the current PC, and, if it begins a hot
+     * basic block that fits in the rest of the current batch, the rest of
+     * that block as well. Every completed instruction is counted in
+     * <tt>batchDone</tt>.
+     *
+     * <p>
+     * A basic block is a run of pre-decoded instructions in one physical page,
+     * ending with the first branch or jump, or just before the first
+     * instruction that always traps. Once a block's first instruction has
+     * been fetched <tt>hotBlockThreshold</tt> times, or as soon as its page is
+     * loaded for a page of code, every block in its page is built by
+     * <tt>buildBlocks()</tt>, and the block is executed as a unit,
+     * translating its page only once.
+     *
+     * <p>
+     * Blocks are never entered from a branch delay slot, and each instruction
+     * is checked against memory before it is executed, so a block that
+     * overwrites itself falls back to the interpreter at the modified word.
+     *
+     * @param	room	the number of instructions left in the current batch.
+     * @exception	MipsException	if an instruction caused an exception.
+     */
+    private void runHotBlock(int room) throws MipsException {
+	if (registers[regNextPC] != registers[regPC]+4) {
+	    long paddr = translate(registers[regPC], 4, false);
+	    execute(getDecoded(paddr, mainMemory.readInt(paddr)));
+	    batchDone++;
+	    return;
+	}
+
+	long paddr = translate(registers[regPC], 4, false);
+	Decoded head = getDecoded(paddr, mainMemory.readInt(paddr));
+
+	int ppn = (int) (paddr / pageSize);
+
+	if (head.blockLength == 0 && ++head.heat == hotBlockThreshold)
+	    buildBlocks(ppn);
+
+	Decoded[] page = decodedPages[ppn];
+	int index = (int) (paddr % pageSize) / 4;
+
+	int length = head.blockLength;
+	if (length == 0 || length > room || page[index] != head) {
+	    execute(head);
+	    batchDone++;
+	    return;
+	}
+
+	for (int i=0; i<length; i++) {
+	    Decoded decoded = page[index+i];
+
+	    // the block has been overwritten, so forget every block in the
+	    // page; they are rebuilt once they are hot again
+	    if (mainMemory.readInt(paddr+i*4) != decoded.value) {
+		decodedPages[ppn] = null;
+		break;
+	    }
+	    
+	    execute(decoded);
+	    batchDone++;
+	}
+    }
+
+    /**
+     * Decode every instruction in physical page <i>ppn</i> that is not
+     * already decoded, and build every basic block in it. This is the only
+     * place blocks are built: the interpreter calls it once a block in the
+     * page is hot, and <tt>CoffSection</tt> calls it as a page of code is
+     * loaded, so that a freshly loaded program runs its blocks without first
+     * warming them up in the interpreter.
+     *
+     * <p>
+     * This is safe to call on any page: the blocks are checked against memory
+     * as they run, like any other block.
+     *
+     * @param	ppn	the physical page to decode.
+     */
+    void buildBlocks(int ppn) {
+	Lib.assertTrue(ppn >= 0 && ppn < numPhysPages);
+
+	Decoded[] page = decodedPages[ppn];
+	if (page == null)
+	    page = decodedPages[ppn] = new Decoded[pageSize / 4];
+	long paddr = makePhysicalAddress(ppn, 0);
+
+	// work backwards, so each block's length follows from the next one's
+	int length = 0;
+	for (int i=page.length-1; i>=0; i--) {
+	    int value = mainMemory.readInt(paddr + i*4);
+	    Decoded decoded = page[i];
+	    if (decoded == null || decoded.value != value)
+		decoded = page[i] = new Decoded(value);
+
+	    if (decoded.trapsAlways())
+		length = 0;
+	    else if (Lib.test(Mips.BRANCH, decoded.flags))
+		length = 1;
+	    else
+		length++;
+
+	    // a block of one instruction is not worth running as a unit
+	    decoded.blockLength = (length >= 2) ? length : 0;
+	}
+    }
+
+    /**
+     * Execute one decoded instruction from the current PC, with no trace
+     * output. This does exactly what <tt>Instruction.run()</tt> does, but all
+     * of the per-instruction state lives in local variables, a single switch
+     * dispatches on the operation, and nothing checks the debug flags, so the
+     * JIT compiler can keep the whole step in registers. Used whenever
+     * processor tracing is off.
+     *
+     * @param	d	the instruction at the current PC.
+     * @exception	MipsException	if the instruction caused an exception.
+     */
+    private void execute(Decoded d) throws MipsException {
+	final int flags = d.flags;
+	final int delayPC = registers[regNextPC];
+	final int linkPC = delayPC + 4;
+
+	int nextPC = linkPC;
+	int mask = 0xFFFFFFFF;
+	long dst = 0;
+
+	long src1 = Lib.test(Mips.SRC1SH, flags) ? d.sh : registers[d.rs];
+	long src2 = Lib.test(Mips.SRC2IMM, flags) ? d.imm : registers[d.rt];
+	if (Lib.test(Mips.UNSIGNED, flags)) {
+	    src1 &= 0xFFFFFFFFL;
+	    src2 &= 0xFFFFFFFFL;
+	}
+
+	int addr, value, preserved;
+
+	switch (d.operation) {
+	case Mips.ADD:
+	    dst = src1 + src2;
+	    break;
+	case Mips.SUB:
+	    dst = src1 - src2;
+	    break;
+	case Mips.MULT:
+	    dst = src1 * src2;
+	    registers[regLo] = (int) dst;
+	    registers[regHi] = (int) (dst >> 32);
+	    break;
+	case Mips.DIV:
+	    if (src2 == 0)
+		throw trap(exceptionOverflow);
+	    registers[regLo] = (int) (src1 / src2);
+	    registers[regHi] = (int) (src1 % src2);
+	    if (registers[regLo]*src2 + registers[regHi] != src1)
+		throw trap(exceptionOverflow);
+	    break;
+
+	case Mips.SLL:
+	    dst = src2 << (src1&0x1F);
+	    break;
+	case Mips.SRA:
+	    dst = src2 >> (src1&0x1F);
+	    break;
+	case Mips.SRL:
+	    dst = src2 >>> (src1&0x1F);
+	    break;
+
+	case Mips.SLT:
+	    dst = (src1<src2) ? 1 : 0;
+	    break;
+
+	case Mips.AND:
+	    dst = src1 & src2;
+	    break;
+	case Mips.OR:
+	    dst = src1 | src2;
+	    break;
+	case Mips.NOR:
+	    dst = ~(src1 | src2);
+	    break;
+	case Mips.XOR:
+	    dst = src1 ^ src2;
+	    break;
+	case Mips.LUI:
+	    dst = d.imm << 16;
+	    break;
+
+	// branch targets are computed before the write back, which may
+	// complete a delayed load into rs
+	case Mips.BEQ:
+	    if (src1 == src2)
+		nextPC = delayPC + d.branchOffset;
+	    break;
+	case Mips.BNE:
+	    if (src1 != src2)
+		nextPC = delayPC + d.branchOffset;
+	    break;
+	case Mips.BGEZ:
+	    if (src1 >= 0)
+		nextPC = delayPC + d.branchOffset;
+	    break;
+	case Mips.BGTZ:
+	    if (src1 > 0)
+		nextPC = delayPC + d.branchOffset;
+	    break;
+	case Mips.BLEZ:
+	    if (src1 <= 0)
+		nextPC = delayPC + d.branchOffset;
+	    break;
+	case Mips.BLTZ:
+	    if (src1 < 0)
+		nextPC = delayPC + d.branchOffset;
+	    break;
+
+	case Mips.JUMP:
+	    if (d.format == Mips.RFMT)
+		nextPC = registers[d.rs];
+	    else
+		nextPC = (delayPC&0xF0000000) | d.jumpTarget;
+	    break;
+
+	case Mips.MFLO:
+	    dst = registers[regLo];
+	    break;
+	case Mips.MFHI:
+	    dst = registers[regHi];
+	    break;
+	case Mips.MTLO:
+	    registers[regLo] = (int) src1;
+	    break;
+	case Mips.MTHI:
+	    registers[regHi] = (int) src1;
+	    break;
+
+	case Mips.SYSCALL:
+	    throw trap(exceptionSyscall);
+
+	// MainMemory.read() already sign-extends, like Lib.extend() would
+	case Mips.LOAD:
+	    addr = registers[d.rs] + d.imm;
+	    dst = mainMemory.read(translate(addr, d.size, false), d.size);
+	    break;
+
+	case Mips.LWL:
+	    addr = registers[d.rs] + d.imm;
+	    value = mainMemory.readInt(translate(addr&~0x3, 4, false));
+
+	    preserved = (3-(addr&0x3))*8;
+	    mask = -1 << preserved;
+	    dst = value << preserved;
+	    break;
+
+	case Mips.LWR:
+	    addr = registers[d.rs] + d.imm;
+	    value = mainMemory.readInt(translate(addr&~0x3, 4, false));
+
+	    preserved = (addr&0x3)*8;
+	    mask = -1 >>> preserved;
+	    dst = value >>> preserved;
+	    break;
+
+	case Mips.STORE:
+	    addr = registers[d.rs] + d.imm;
+	    mainMemory.write(translate(addr, d.size, true), d.size, (int) src2);
+	    break;
+
+	case Mips.SWL:
+	    addr = registers[d.rs] + d.imm;
+	    value = mainMemory.readInt(translate(addr&~0x3, 4, false));
+
+	    preserved = (3-(addr&0x3))*8;
+	    mask = -1 >>> preserved;
+	    dst = ((src2 >>> preserved) & mask) | (value & ~mask);
+
+	    mainMemory.write(translate(addr&~0x3, 4, true), 4, (int) dst);
+	    break;
+
+	case Mips.SWR:
+	    addr = registers[d.rs] + d.imm;
+	    value = mainMemory.readInt(translate(addr&~0x3, 4, false));
+
+	    preserved = (addr&0x3)*8;
+	    mask = -1 << preserved;
+	    dst = ((src2 << preserved) & mask) | (value & ~mask);
+
+	    mainMemory.write(translate(addr&~0x3, 4, true), 4, (int) dst);
+	    break;
+
+	case Mips.UNIMPL:
+	    System.err.println("Warning: encountered unimplemented inst");
+
+	case Mips.INVALID:
+	    throw trap(exceptionIllegalInstruction);
+
+	default:
+	    Lib.assertNotReached();
+	}
+
+	// write back
+	if (Lib.test(Mips.OVERFLOW, flags) &&
+	    Lib.test(dst,31) != Lib.test(dst,32))
+	    throw trap(exceptionOverflow);
+
+	int dstReg = d.dstReg;
+	
+	if (Lib.test(Mips.DELAYEDLOAD, flags))
+	    delayedLoad(dstReg, (int) dst, mask);
+	else
+	    finishLoad();
+
+	if (Lib.test(Mips.LINK, flags))
+	    dst = linkPC;
+
+	if (Lib.test(Mips.DST, flags) && dstReg != 0)
+	    registers[dstReg] = (int) dst;
+
+	registers[regPC] = delayPC;
+	registers[regNextPC] = nextPC;
+    }
+
+    /**
+     * Advance the simulated time by <i>count</i> user instructions without
+     * checking for interrupts. The caller must ensure that no interrupt
+     * becomes due in that time.
+     *
+     * @param	count	the number of user instructions to charge.
+     */
+    private void chargeUserTicks(int count) {
+	privilege.stats.userTicks += count * Stats.UserTick;
+	privilege.stats.totalTicks += count * Stats.UserTick;
+    }
+
     /**
      * Read and return the contents of the specified CPU register.
      *
@@ -175,6 +573,7 @@ public final class Processor {
 	Lib.assertTrue(!usingTLB);
 
 	this.translations = pageTable;
+	flushTranslationCache();
     }
 
     /**
@@ -216,6 +615,7 @@ public final class Processor {
 	Lib.assertTrue(number >= 0 && number < tlbSize);
 
 	translations[number] = new TranslationEntry(entry);
+	flushTranslationCache();
     }
 
     /**
@@ -229,12 +629,14 @@ public final class Processor {
     }
 
     /**
-     * Return a reference to the physical memory array. The size of this array
-     * is <tt>pageSize * getNumPhysPages()</tt>.
+     * Return a reference to the physical memory. The size of the memory is
+     * <tt>pageSize * getNumPhysPages()</tt> bytes, and the physical address of
+     * offset <i>offset</i> in physical page <i>ppn</i> is
+     * <tt>makePhysicalAddress(ppn, offset)</tt>.
      *
-     * @return	the main memory array.
+     * @return	the main memory.
      */
-    public byte[] getMemory() {
+    public MainMemory getMemory() {
 	return mainMemory;
     }
 
@@ -255,6 +657,23 @@ public final class Processor {
 	return (page * pageSize) | offset;
     }
 
+    /**
+     * Concatenate a physical page number and an offset into a physical
+     * address. Physical addresses are not limited to 32 bits.
+     *
+     * @param	ppn	the physical page number. Must be non-negative.
+     * @param	offset	the offset within the page. Must be between <tt>0</tt>
+     *			and
+     *			<tt>pageSize - 1</tt>.
+     * @return	the physical address of the specified page and offset.
+     */
+    public static long makePhysicalAddress(int ppn, int offset) {
+	Lib.assertTrue(ppn >= 0);
+	Lib.assertTrue(offset >= 0 && offset < pageSize);
+
+	return ((long) ppn * pageSize) | offset;
+    }
+
     /**
      * Extract the page number component from a 32-bit address.
      *
@@ -279,6 +698,39 @@ public final class Processor {
 	delayedLoad(0, 0, 0);
     }
 
+    /**
+     * Return the pre-decoded form of the instruction word <i>value</i>, which
+     * was fetched from physical address <i>paddr</i>. The decoded record is
+     * cached by physical page, and reused as long as the word in memory is
+     * unchanged. Writing or remapping a page (whether by a user store, by
+     * loading a COFF section, or by swapping the page in) is noticed at the
+     * first stale entry, and discards all of the page's entries, since a
+     * basic block built from them might span the changed word.
+     *
+     * @param	paddr	the physical address the instruction was fetched from.
+     * @param	value	the instruction word at that address.
+     * @return	the decoded instruction.
+     */
+    private Decoded getDecoded(long paddr, int value) {
+	int ppn = (int) (paddr / pageSize);
+	Decoded[] page = decodedPages[ppn];
+	if (page == null)
+	    page = decodedPages[ppn] = new Decoded[pageSize / 4];
+
+	int index = (int) (paddr % pageSize) / 4;
+	Decoded decoded = page[index];
+	if (decoded != null && decoded.value != value) {
+	    // the page was rewritten, so blocks in it may span stale words
+	    page = decodedPages[ppn] = new Decoded[pageSize / 4];
+	    decoded = null;
+	}
+
+	if (decoded == null)
+	    decoded = page[index] = new Decoded(value);
+
+	return decoded;
+    }
+
     /**
      * Translate a virtual address into a physical address, using either a
      * page table or a TLB. Check for alignment, make sure the virtual page is
@@ -292,8 +744,26 @@ public final class Processor {
      * @return		the physical address.
      * @exception	MipsException	if a translation error occurred.
      */
-    private int translate(int vaddr, int size, boolean writing)
+    private long translate(int vaddr, int size, boolean writing)
 	throws MipsException {
+	// try the translation cache first; anything unusual falls through to
+	// the full translation below, so faults are raised exactly as before
+	if (useTranslationCache && (vaddr & (size-1)) == 0) {
+	    int vpn = pageFromAddress(vaddr);
+	    TranslationEntry entry =
+		(writing ? writeCache : readCache).lookup(vpn);
+
+	    if (entry != null && entry.valid && !(writing && entry.readOnly) &&
+		(usingTLB || translations[vpn] == entry) &&
+		entry.ppn >= 0 && entry.ppn < numPhysPages) {
+		entry.used = true;
+		if (writing)
+		    entry.dirty = true;
+
+		return ((long) entry.ppn*pageSize) + offsetFromAddress(vaddr);
+	    }
+	}
+
 	if (Lib.test(dbgProcessor))
 	    System.out.println("\ttranslate vaddr=0x" + Lib.toHexString(vaddr)
 			       + (writing ? ", write" : ", read..."));
@@ -301,7 +771,7 @@ public final class Processor {
 	// check alignment
 	if ((vaddr & (size-1)) != 0) {
 	    Lib.debug(dbgProcessor, "\t\talignment error");
-	    throw new MipsException(exceptionAddressError, vaddr);
+	    throw trap(exceptionAddressError, vaddr);
 	}
 
 	// calculate virtual page number and offset from the virtual address
@@ -317,7 +787,7 @@ public final class Processor {
 		!translations[vpn].valid) {
 		privilege.stats.numPageFaults++;
 		Lib.debug(dbgProcessor, "\t\tpage fault");
-		throw new MipsException(exceptionPageFault, vaddr);
+		throw trap(exceptionPageFault, vaddr);
 	    }
 
 	    entry = translations[vpn];
@@ -333,21 +803,21 @@ public final class Processor {
 	    if (entry == null) {
 		privilege.stats.numTLBMisses++;
 		Lib.debug(dbgProcessor, "\t\tTLB miss");
-		throw new MipsException(exceptionTLBMiss, vaddr);
+		throw trap(exceptionTLBMiss, vaddr);
 	    }
 	}
 
 	// check if trying to write a read-only page
 	if (entry.readOnly && writing) {
 	    Lib.debug(dbgProcessor, "\t\tread-only exception");
-	    throw new MipsException(exceptionReadOnly, vaddr);
+	    throw trap(exceptionReadOnly, vaddr);
 	}
 
 	// check if physical page number is out of range
 	int ppn = entry.ppn;
 	if (ppn < 0 || ppn >= numPhysPages) {
 	    Lib.debug(dbgProcessor, "\t\tbad ppn");
-	    throw new MipsException(exceptionBusError, vaddr);
+	    throw trap(exceptionBusError, vaddr);
 	}
 
 	// set used and dirty bits as appropriate
@@ -355,13 +825,62 @@ public final class Processor {
 	if (writing)
 	    entry.dirty = true;
 
-	int paddr = (ppn*pageSize) + offset;
+	long paddr = ((long) ppn*pageSize) + offset;
+
+	if (useTranslationCache)
+	    (writing ? writeCache : readCache).fill(vpn, entry);
 
 	if (Lib.test(dbgProcessor))
-	    System.out.println("\t\tpaddr=0x" + Lib.toHexString(paddr));	
+	    System.out.println("\t\tpaddr=0x" + Lib.toHexString(paddr, 8));
 	return paddr;
     }
 
+    /**
+     * Read the word at virtual address <i>vaddr</i> using the current TLB or
+     * page table, without raising an exception, counting a fault, or setting
+     * the used bit. Used to inspect a user program from outside it.
+     *
+     * @param	vaddr	the virtual address to read from.
+     * @return	the word at that address, as an unsigned value, or <tt>-1</tt>
+     *		if the address is unaligned or not currently mapped.
+     */
+    long peekWord(int vaddr) {
+	if ((vaddr & 0x3) != 0)
+	    return -1;
+
+	int vpn = pageFromAddress(vaddr);
+	TranslationEntry entry = null;
+
+	if (!usingTLB) {
+	    if (translations != null && vpn < translations.length &&
+		translations[vpn] != null && translations[vpn].valid)
+		entry = translations[vpn];
+	}
+	else {
+	    for (int i=0; i<tlbSize; i++) {
+		if (translations[i].valid && translations[i].vpn == vpn) {
+		    entry = translations[i];
+		    break;
+		}
+	    }
+	}
+
+	if (entry == null || entry.ppn < 0 || entry.ppn >= numPhysPages)
+	    return -1;
+
+	long paddr = makePhysicalAddress(entry.ppn, offsetFromAddress(vaddr));
+	return mainMemory.readInt(paddr) & 0xFFFFFFFFL;
+    }
+
+    /**
+     * Discard every entry in the read and write translation caches. Called
+     * whenever the TLB or the page table is replaced.
+     */
+    private void flushTranslationCache() {
+	readCache.flush();
+	writeCache.flush();
+    }
+
     /**
      * Read </i>size</i> (1, 2, or 4) bytes of virtual memory at <i>vaddr</i>,
      * and return the result.
@@ -378,8 +897,7 @@ public final class Processor {
 
 	Lib.assertTrue(size==1 || size==2 || size==4);
 	
-	int value = Lib.bytesToInt(mainMemory, translate(vaddr, size, false),
-				   size);
+	int value = mainMemory.read(translate(vaddr, size, false), size);
 
 	if (Lib.test(dbgProcessor))
 	    System.out.println("\t\tvalue read=0x" +
@@ -406,8 +924,7 @@ public final class Processor {
 
 	Lib.assertTrue(size==1 || size==2 || size==4);
 	
-	Lib.bytesFromInt(mainMemory, translate(vaddr, size, true), size,
-			 value);
+	mainMemory.write(translate(vaddr, size, true), size, value);
     }
 
     /**
@@ -547,6 +1064,16 @@ public final class Processor {
      */
     private TranslationEntry[] translations;
 
+    /** <tt>true</tt> if <tt>translate()</tt> may use the caches below. */
+    private boolean useTranslationCache;
+    /** Instructions completed so far by the current <tt>runBatch()</tt>. */
+    private int batchDone;
+
+    /** Recent translations that were successfully read through. */
+    private TranslationCache readCache = new TranslationCache();
+    /** Recent translations that were successfully written through. */
+    private TranslationCache writeCache = new TranslationCache();
+
     /** Size of a page, in bytes. */
     public static final int pageSize = 0x400;
     /** Number of pages in a 32-bit address space. */
@@ -554,10 +1081,29 @@ public final class Processor {
     /** Number of physical pages in memory. */
     private int numPhysPages;
     /** Main memory for user programs. */
-    private byte[] mainMemory;
+    private MainMemory mainMemory;
+    /**
+     * Pre-decoded instructions, indexed by physical page number and then by
+     * word offset within the page. A page's array is allocated the first
+     * time an instruction is fetched from it, or when code is loaded into
+     * it.
+     */
+    private Decoded[][] decodedPages;
 
     /** The kernel exception handler, called on every user exception. */
     private Runnable exceptionHandler = null;
+    /** The exception object thrown for every user exception. */
+    private MipsException mipsException = new MipsException();
+
+    /** Number of entries in each translation cache; a power of two. */
+    private static final int translationCacheSize = 64;
+    /** Maximum number of instructions executed by one <tt>runBatch()</tt>. */
+    private static final int maxBatchSize = 0x10000;
+    /**
+     * Number of fetches of a block's first instruction after which the
+     * blocks of its page are built.
+     */
+    private static final int hotBlockThreshold = 16;
 
     private static final char dbgProcessor = 'p';
     private static final char dbgDisassemble = 'm';
@@ -569,18 +1115,91 @@ public final class Processor {
 	}
     }
 
-    private class MipsException extends Exception {
-	public MipsException(int cause) {
-	    Lib.assertTrue(cause >= 0 && cause < exceptionNames.length);
+    /**
+     * A direct-mapped cache from virtual page numbers to the translation
+     * entries they last resolved to. A hit only names a candidate entry;
+     * <tt>translate()</tt> still checks that the entry is valid, writable if
+     * need be, and (without a TLB) still installed in the page table, so
+     * changes the kernel makes to an entry in place are always seen, and the
+     * used and dirty bits are set on the entry itself.
+     */
+    private static class TranslationCache {
+	TranslationCache() {
+	    flush();
+	}
+
+	TranslationEntry lookup(int vpn) {
+	    int slot = vpn & (translationCacheSize-1);
 
-	    this.cause = cause;
+	    if (vpns[slot] == vpn)
+		return entries[slot];
+	    else
+		return null;
 	}
 
-	public MipsException(int cause, int badVAddr) {
-	    this(cause);
+	void fill(int vpn, TranslationEntry entry) {
+	    int slot = vpn & (translationCacheSize-1);
+
+	    vpns[slot] = vpn;
+	    entries[slot] = entry;
+	}
+
+	void flush() {
+	    for (int i=0; i<translationCacheSize; i++) {
+		vpns[i] = -1;
+		entries[i] = null;
+	    }
+	}
+
+	private int[] vpns = new int[translationCacheSize];
+	private TranslationEntry[] entries =
+	    new TranslationEntry[translationCacheSize];
+    }
+
+    /**
+     * Return the processor's exception object, set up to report an exception
+     * of type <i>cause</i>.
+     *
+     * @param	cause	the cause of the exception.
+     * @return	the exception to throw.
+     */
+    private MipsException trap(int cause) {
+	Lib.assertTrue(cause >= 0 && cause < exceptionNames.length);
+
+	mipsException.cause = cause;
+	mipsException.hasBadVAddr = false;
+	return mipsException;
+    }
 
-	    hasBadVAddr = true;
-	    this.badVAddr = badVAddr;
+    /**
+     * Return the processor's exception object, set up to report an exception
+     * of type <i>cause</i> caused by an access to virtual address
+     * <i>badVAddr</i>.
+     *
+     * @param	cause		the cause of the exception.
+     * @param	badVAddr	the virtual address that caused the exception.
+     * @return	the exception to throw.
+     */
+    private MipsException trap(int cause, int badVAddr) {
+	trap(cause);
+
+	mipsException.hasBadVAddr = true;
+	mipsException.badVAddr = badVAddr;
+	return mipsException;
+    }
+
+    /**
+     * A user exception on its way from the instruction that caused it to the
+     * kernel's exception handler. TLB misses, page faults, and system calls
+     * are all delivered this way, so a single instance is reused for every
+     * exception (see <tt>trap()</tt>), and it carries no stack trace. The
+     * instance is free again as soon as <tt>handle()</tt> has copied the cause
+     * and bad address into the CPU registers, which happens before the
+     * kernel can switch to another thread.
+     */
+    private class MipsException extends Exception {
+	public Throwable fillInStackTrace() {
+	    return this;
 	}
 
 	public void handle() {
@@ -626,78 +1245,54 @@ public final class Processor {
 		System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
 				 + "\t");
 
-	    value = readMem(registers[regPC], 4);
+	    if (Lib.test(dbgProcessor))
+		System.out.println("\treadMem vaddr=0x" +
+				   Lib.toHexString(registers[regPC]) +
+				   ", size=4");
+
+	    long paddr = translate(registers[regPC], 4, false);
+	    value = mainMemory.readInt(paddr);
+
+	    if (Lib.test(dbgProcessor))
+		System.out.println("\t\tvalue read=0x" +
+				   Lib.toHexString(value, 8));
+
+	    decoded = getDecoded(paddr, value);
 	}
 	
 	private void decode() {
-	    op = Lib.extract(value, 26, 6);
-	    rs = Lib.extract(value, 21, 5);
-	    rt = Lib.extract(value, 16, 5);
-	    rd = Lib.extract(value, 11, 5);
-	    sh = Lib.extract(value, 6, 5);
-	    func = Lib.extract(value, 0, 6);
-	    target = Lib.extract(value, 0, 26);
-	    imm = Lib.extend(value, 0, 16);
-
-	    Mips info;
-	    switch (op) {
-	    case 0:
-		info = Mips.specialtable[func];
-		break;
-	    case 1:
-		info = Mips.regimmtable[rt];
-		break;
-	    default:
-		info = Mips.optable[op];
-		break;
-	    }
-
-	    operation = info.operation;
-	    name = info.name;
-	    format = info.format;
-	    flags = info.flags;
+	    op = decoded.op;
+	    rs = decoded.rs;
+	    rt = decoded.rt;
+	    rd = decoded.rd;
+	    sh = decoded.sh;
+	    func = decoded.func;
+	    target = decoded.target;
+	    imm = decoded.imm;
+
+	    operation = decoded.operation;
+	    name = decoded.name;
+	    format = decoded.format;
+	    flags = decoded.flags;
+	    size = decoded.size;
+	    dstReg = decoded.dstReg;
 
 	    mask = 0xFFFFFFFF;	
 	    branch = true;
-	
-	    // get memory access size
-	    if (test(Mips.SIZEB))
-		size = 1;
-	    else if (test(Mips.SIZEH))
-		size = 2;
-	    else if (test(Mips.SIZEW))
-		size = 4;
-	    else
-		size = 0;
 
 	    // get nextPC
 	    nextPC = registers[regNextPC]+4;
 
-	    // get dstReg
-	    if (test(Mips.DSTRA))
-		dstReg = regRA;
-	    else if (format == Mips.IFMT)
-		dstReg = rt;
-	    else if (format == Mips.RFMT)
-		dstReg = rd;
-	    else
-		dstReg = -1;
-
 	    // get jtarget
 	    if (format == Mips.RFMT)
 		jtarget = registers[rs];
 	    else if (format == Mips.IFMT)
-		jtarget = registers[regNextPC] + (imm<<2);
+		jtarget = registers[regNextPC] + decoded.branchOffset;
 	    else if (format == Mips.JFMT)
-		jtarget = (registers[regNextPC]&0xF0000000) | (target<<2);
+		jtarget = (registers[regNextPC]&0xF0000000) | decoded.jumpTarget;
 	    else
 		jtarget = -1;
 
-	    // get imm
-	    if (test(Mips.UNSIGNED)) {
-		imm &= 0xFFFF;
-	    }
-
 	    // get addr
 	    addr = registers[rs] + imm;
 
@@ -869,7 +1464,7 @@ public final class Processor {
 			throw new ArithmeticException();
 		}
 		catch (ArithmeticException e) {
-		    throw new MipsException(exceptionOverflow);
+		    throw trap(exceptionOverflow);
 		}
 		break;
 
@@ -939,7 +1534,7 @@ public final class Processor {
 		break;
 
 	    case Mips.SYSCALL:
-		throw new MipsException(exceptionSyscall);
+		throw trap(exceptionSyscall);
 
 	    case Mips.LOAD:
 		value = readMem(addr, size);
@@ -1009,7 +1604,7 @@ public final class Processor {
 		System.err.println("Warning: encountered unimplemented inst");
 		
 	    case Mips.INVALID:
-		throw new MipsException(exceptionIllegalInstruction);
+		throw trap(exceptionIllegalInstruction);
 
 	    default:
 		Lib.assertNotReached();
@@ -1019,7 +1614,7 @@ public final class Processor {
 	private void writeBack() throws MipsException {
 	    // if instruction is signed, but carry bit !+ sign bit, throw
 	    if (test(Mips.OVERFLOW) && Lib.test(dst,31) != Lib.test(dst,32))
-		throw new MipsException(exceptionOverflow);
+		throw trap(exceptionOverflow);
 
 	    if (test(Mips.DELAYEDLOAD))
 		delayedLoad(dstReg, (int) dst, mask);
@@ -1052,6 +1647,7 @@ public final class Processor {
 	}
     
 	// state used to execute a single instruction
+	Decoded decoded;
 	int value, op, rs, rt, rd, sh, func, target, imm;
 	int operation, format, flags;
 	String name;
@@ -1063,6 +1659,104 @@ public final class Processor {
 	boolean branch;
     }
 
+    /**
+     * The register-independent part of decoding an instruction word: the
+     * extracted fields, the <tt>Mips</tt> table entry, and everything that
+     * follows from them. Computed once per word and cached by
+     * <tt>getDecoded()</tt>.
+     */
+    private static class Decoded {
+	Decoded(int value) {
+	    this.value = value;
+
+	    op = Lib.extract(value, 26, 6);
+	    rs = Lib.extract(value, 21, 5);
+	    rt = Lib.extract(value, 16, 5);
+	    rd = Lib.extract(value, 11, 5);
+	    sh = Lib.extract(value, 6, 5);
+	    func = Lib.extract(value, 0, 6);
+	    target = Lib.extract(value, 0, 26);
+	    int simm = Lib.extend(value, 0, 16);
+
+	    Mips info;
+	    switch (op) {
+	    case 0:
+		info = Mips.specialtable[func];
+		break;
+	    case 1:
+		info = Mips.regimmtable[rt];
+		break;
+	    default:
+		info = Mips.optable[op];
+		break;
+	    }
+
+	    operation = info.operation;
+	    name = info.name;
+	    format = info.format;
+	    flags = info.flags;
+
+	    // get memory access size
+	    if (Lib.test(Mips.SIZEB, flags))
+		size = 1;
+	    else if (Lib.test(Mips.SIZEH, flags))
+		size = 2;
+	    else if (Lib.test(Mips.SIZEW, flags))
+		size = 4;
+	    else
+		size = 0;
+
+	    // get dstReg
+	    if (Lib.test(Mips.DSTRA, flags))
+		dstReg = regRA;
+	    else if (format == Mips.IFMT)
+		dstReg = rt;
+	    else if (format == Mips.RFMT)
+		dstReg = rd;
+	    else
+		dstReg = -1;
+
+	    // the PC-independent parts of jtarget
+	    branchOffset = simm<<2;
+	    jumpTarget = target<<2;
+
+	    // get imm
+	    if (Lib.test(Mips.UNSIGNED, flags))
+		imm = simm & 0xFFFF;
+	    else
+		imm = simm;
+	}
+
+	/** The instruction word this record was decoded from. */
+	final int value;
+	
+	final int op, rs, rt, rd, sh, func, target, imm;
+	final int operation, format, flags;
+	final String name;
+
+	final int size, dstReg;
+	final int branchOffset, jumpTarget;
+
+	/**
+	 * Test whether this instruction always causes an exception, so a basic
+	 * block must end before it.
+	 */
+	boolean trapsAlways() {
+	    return (operation == Mips.SYSCALL ||
+		    operation == Mips.UNIMPL ||
+		    operation == Mips.INVALID);
+	}
+
+	/** The number of times this instruction began a basic block. */
+	int heat = 0;
+	/**
+	 * The length of the hot basic block starting here, which continues
+	 * through the following words of the page, or <tt>0</tt> if none has
+	 * been built.
+	 */
+	int blockLength = 0;
+    }
+
     private static class Mips {
 	Mips() {
 	}
@@ -0,0 +1,179 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import nachos.security.*;
+import nachos.threads.KThread;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A sampling profiler for user programs. Every time the timer interrupts a
+ * user program, the profiler records the current thread, the PC, and a call
+ * chain reconstructed from the return address register and the stack. When
+ * the machine halts, it writes two reports: the call chains in the collapsed
+ * ("folded") format read by flame graph tools, and a histogram of sampled
+ * PCs.
+ *
+ * <p>
+ * MIPS code compiled without frame pointers can't be unwound exactly, so the
+ * call chain is a heuristic: a word is taken to be a return address if the
+ * instruction two words before it is a <tt>jal</tt> or <tt>jalr</tt>. The
+ * return address register is tried first, then the words on the stack
+ * starting at the stack pointer. Memory is inspected without faulting pages
+ * in or touching their used bits, so profiling does not change the program's
+ * behavior.
+ *
+ * <p>
+ * The profiler is enabled by setting <tt>Machine.profiler</tt> to
+ * <tt>true</tt>. The reports are written to the files named by
+ * <tt>Profiler.foldedFile</tt> and <tt>Profiler.histogramFile</tt>.
+ */
+public final class Profiler {
+    /**
+     * Allocate a new profiler.
+     *
+     * @param	privilege      	encapsulates privileged access to the Nachos
+     *				machine.
+     */
+    public Profiler(Privilege privilege) {
+	System.out.print(" profiler");
+
+	this.privilege = privilege;
+
+	foldedFileName =
+	    Config.getString("Profiler.foldedFile", "profile.folded");
+	histogramFileName =
+	    Config.getString("Profiler.histogramFile", "profile.pcs");
+    }
+
+    /**
+     * Take a sample, if the timer interrupted a user program. Called by the
+     * timer before the kernel's interrupt handler runs.
+     */
+    void sample() {
+	Processor processor = Machine.processor();
+	if (processor == null || !Machine.interrupt().tickedInUserMode())
+	    return;
+
+	String thread = KThread.currentThread().toString();
+	int pc = processor.readRegister(Processor.regPC);
+
+	ArrayList<Integer> chain = new ArrayList<Integer>();
+	chain.add(pc);
+
+	addCaller(chain, processor, processor.readRegister(Processor.regRA));
+
+	int sp = processor.readRegister(Processor.regSP);
+	for (int i=0; i<maxStackScan && chain.size()<maxDepth; i++) {
+	    long word = processor.peekWord(sp + i*4);
+	    if (word == -1)
+		break;
+
+	    addCaller(chain, processor, (int) word);
+	}
+
+	StringBuffer stack = new StringBuffer(thread);
+	for (int i=chain.size()-1; i>=0; i--)
+	    stack.append(";0x" + Lib.toHexString(chain.get(i)));
+
+	count(stacks, stack.toString());
+	count(pcs, thread + " 0x" + Lib.toHexString(pc));
+	numSamples++;
+    }
+
+    private void addCaller(ArrayList<Integer> chain, Processor processor,
+			   int address) {
+	if (address == chain.get(chain.size()-1) ||
+	    !isReturnAddress(processor, address))
+	    return;
+
+	chain.add(address);
+    }
+
+    private static boolean isReturnAddress(Processor processor, int address) {
+	long word = processor.peekWord(address - 8);
+	if (word == -1)
+	    return false;
+
+	int inst = (int) word;
+	int op = inst >>> 26;
+	int func = inst & 0x3F;
+
+	// jal, or jalr
+	return (op == 3 || (op == 0 && func == 9));
+    }
+
+    private static void count(Map<String, Integer> counts, String key) {
+	Integer count = counts.get(key);
+	counts.put(key, (count == null) ? 1 : count + 1);
+    }
+
+    /**
+     * Write the collapsed stack and PC histogram reports. Called when the
+     * machine halts.
+     */
+    void report() {
+	System.out.println("Profiler: " + numSamples + " samples, written to "
+			   + foldedFileName + " and " + histogramFileName);
+
+	privilege.doPrivileged(new Runnable() {
+		public void run() {
+		    write(foldedFileName, stacks, false);
+		    write(histogramFileName, pcs, true);
+		}
+	    });
+    }
+
+    private void write(String fileName, Map<String, Integer> counts,
+		       boolean withPercent) {
+	ArrayList<Map.Entry<String, Integer>> entries =
+	    new ArrayList<Map.Entry<String, Integer>>(counts.entrySet());
+
+	// most frequent first
+	Collections.sort(entries, new Comparator<Map.Entry<String, Integer>>() {
+		public int compare(Map.Entry<String, Integer> a,
+				   Map.Entry<String, Integer> b) {
+		    int c = b.getValue().compareTo(a.getValue());
+		    return (c != 0) ? c : a.getKey().compareTo(b.getKey());
+		}
+	    });
+
+	try {
+	    PrintWriter out = new PrintWriter(new FileWriter(new File(fileName)));
+
+	    for (Map.Entry<String, Integer> entry : entries) {
+		out.print(entry.getKey() + " " + entry.getValue());
+		if (withPercent)
+		    out.print(" " + (entry.getValue() * 100 / numSamples) + "%");
+		out.println();
+	    }
+
+	    out.close();
+	}
+	catch (IOException e) {
+	    System.out.println("Profiler: could not write " + fileName);
+	}
+    }
+
+    private Privilege privilege;
+
+    private String foldedFileName, histogramFileName;
+
+    private int numSamples = 0;
+    private HashMap<String, Integer> stacks = new HashMap<String, Integer>();
+    private HashMap<String, Integer> pcs = new HashMap<String, Integer>();
+
+    /** The most frames recorded in one call chain. */
+    private static final int maxDepth = 32;
+    /** The most stack words examined for return addresses. */
+    private static final int maxStackScan = 1024;
+}
@@ -5,9 +5,9 @@ package nachos.machine;
 import nachos.security.*;
 
 /**
- * A serial console can be used to send and receive characters. Only one
- * character may be sent at a time, and only one character may be received at a
- * time.
+ * A serial console can be used to send and receive characters. A console
+ * buffers a limited number of characters in each direction; without interrupt
+ * coalescing, that is one character each way.
  */
 
 public interface SerialConsole {
@@ -15,13 +15,14 @@ public interface SerialConsole {
      * Set this console's receive and send interrupt handlers.
      *
      * <p>
-     * The receive interrupt handler is called every time another byte arrives
-     * and can be read using <tt>readByte()</tt>.
+     * The receive interrupt handler is called when one or more bytes have
+     * arrived and can be read using <tt>readByte()</tt>. The console does not
+     * receive any more bytes until all of them have been read.
      *
      * <p>
-     * The send interrupt handler is called every time a byte sent with
-     * <tt>writeByte()</tt> is finished being sent. This means that another
-     * byte can be sent.
+     * The send interrupt handler is called when one or more bytes sent with
+     * <tt>writeByte()</tt> are finished being sent. This means that more bytes
+     * can be sent.
      *
      * @param	receiveInterruptHandler	the callback to call when a byte
      *					arrives.
@@ -40,10 +41,25 @@ public interface SerialConsole {
     public int	readByte();
 
     /**
-     * Send another byte. If a byte is already being sent, the result is not
-     * defined.
+     * Send another byte. This may only be called if <tt>canWrite()</tt>
+     * returns <tt>true</tt>.
      *
      * @param	value	the byte to be sent (the upper 24 bits are ignored).
      */
     public void writeByte(int value);
+
+    /**
+     * Test whether the console has room to buffer another byte to send.
+     *
+     * @return	<tt>true</tt> if <tt>writeByte()</tt> can be called.
+     */
+    public boolean canWrite();
+
+    /**
+     * Test whether any bytes passed to <tt>writeByte()</tt> have not yet
+     * finished being sent.
+     *
+     * @return	<tt>true</tt> if the console is still sending.
+     */
+    public boolean isWriting();
 }
@@ -8,6 +8,17 @@ import java.io.IOException;
 
 /**
  * A text-based console that uses System.in and System.out.
+ *
+ * <p>
+ * The console can coalesce interrupts. It buffers up to
+ * <tt>StandardConsole.coalesceCount</tt> bytes in each direction (the default
+ * is 1, which means no coalescing). A receive interrupt is raised when the
+ * receive buffer fills, or when its oldest byte has waited
+ * <tt>StandardConsole.coalesceTicks</tt> ticks (like a UART's receive
+ * timeout). A send interrupt is raised when the send buffer empties, when
+ * that many bytes have been sent since the last send interrupt, or when the
+ * oldest of those was sent that many ticks ago. The interrupt handlers should
+ * read every available byte, and refill the send buffer, each time they run.
  */
 public class StandardConsole implements SerialConsole {
     /**
@@ -28,6 +39,14 @@ public class StandardConsole implements SerialConsole {
 	sendInterrupt = new Runnable() {
 		public void run() { sendInterrupt(); }
 	    };		
+
+	coalesceCount = Config.getInteger("StandardConsole.coalesceCount", 1);
+	coalesceTicks = Config.getInteger("StandardConsole.coalesceTicks",
+					  4*Stats.ConsoleTime);
+	Lib.assertTrue(coalesceCount >= 1 && coalesceTicks >= 0);
+
+	incoming = new int[coalesceCount];
+	outgoing = new int[coalesceCount];
 	
 	scheduleReceiveInterrupt();
     }
@@ -60,6 +79,22 @@ public class StandardConsole implements SerialConsole {
 	}
     }
 
+    /**
+     * Read the next byte from the console, or from the journal if a run is
+     * being replayed, recording it if a run is being recorded.
+     */
+    private int nextInput() {
+	Journal journal = Machine.journal();
+	if (journal != null && journal.isReplaying())
+	    return journal.replayConsole();
+
+	int c = in();
+	if (journal != null && c != -1)
+	    journal.recordConsole(c);
+
+	return c;
+    }
+
     private int translateCharacter(int c) {
 	// translate win32 0x0D 0x0A sequence to single newline
 	if (c == 0x0A && prevCarriageReturn) {
@@ -87,25 +122,44 @@ public class StandardConsole implements SerialConsole {
 
 
     private void receiveInterrupt() {
-	Lib.assertTrue(incomingKey == -1);
+	Lib.assertTrue(!receivePending && incomingCount < coalesceCount);
+
+	long time = privilege.stats.totalTicks;
+
+	int key = translateCharacter(nextInput());
+	if (key != -1) {
+	    if (incomingCount == 0)
+		firstIncomingTime = time;
+
+	    incoming[(incomingHead + incomingCount) % coalesceCount] = key;
+	    incomingCount++;
 
-	incomingKey = translateCharacter(in());
-	if (incomingKey == -1) {
-	    scheduleReceiveInterrupt();
-	}
-	else {
 	    privilege.stats.numConsoleReads++;
+	}
+
+	if (incomingCount == coalesceCount ||
+	    (incomingCount > 0 && time - firstIncomingTime >= coalesceTicks)) {
+	    // stop polling until the handler has read every byte
+	    receivePending = true;
 
 	    if (receiveInterruptHandler != null)
 		receiveInterruptHandler.run();
 	}
+	else {
+	    scheduleReceiveInterrupt();
+	}
     }
 
     public final int readByte() {
-	int key = incomingKey;
+	if (incomingCount == 0)
+	    return -1;
+
+	int key = incoming[incomingHead];
+	incomingHead = (incomingHead + 1) % coalesceCount;
+	incomingCount--;
 
-	if (incomingKey != -1) {
-	    incomingKey = -1;
+	if (incomingCount == 0 && receivePending) {
+	    receivePending = false;
 	    scheduleReceiveInterrupt();
 	}
 
@@ -128,22 +182,47 @@ public class StandardConsole implements SerialConsole {
     }	
 
     private void sendInterrupt() {
-	Lib.assertTrue(outgoingKey != -1);
+	Lib.assertTrue(outgoingCount > 0);
 
-	out(outgoingKey);
-	outgoingKey = -1;
+	long time = privilege.stats.totalTicks;
+
+	out(outgoing[outgoingHead]);
+	outgoingHead = (outgoingHead + 1) % coalesceCount;
+	outgoingCount--;
 
 	privilege.stats.numConsoleWrites++;
 
-	if (sendInterruptHandler != null)
-	    sendInterruptHandler.run();
+	if (numUnreportedSends++ == 0)
+	    firstUnreportedSendTime = time;
+
+	if (outgoingCount > 0)
+	    scheduleSendInterrupt();
+
+	if (outgoingCount == 0 || numUnreportedSends == coalesceCount ||
+	    time - firstUnreportedSendTime >= coalesceTicks) {
+	    numUnreportedSends = 0;
+
+	    if (sendInterruptHandler != null)
+		sendInterruptHandler.run();
+	}
     }
 
     public final void writeByte(int value) {
-	if (outgoingKey == -1)
+	Lib.assertTrue(outgoingCount < coalesceCount);
+
+	outgoing[(outgoingHead + outgoingCount) % coalesceCount] = value&0xFF;
+	outgoingCount++;
+
+	if (outgoingCount == 1)
 	    scheduleSendInterrupt();
-	
-	outgoingKey = value&0xFF;
+    }
+
+    public final boolean canWrite() {
+	return outgoingCount < coalesceCount;
+    }
+
+    public final boolean isWriting() {
+	return outgoingCount > 0;
     }
 
     private Privilege privilege = null;
@@ -154,8 +233,18 @@ public class StandardConsole implements SerialConsole {
     private Runnable receiveInterruptHandler = null;
     private Runnable sendInterruptHandler = null;
 
-    private int incomingKey = -1;
-    private int outgoingKey = -1;
+    private int coalesceCount;
+    private long coalesceTicks;
+
+    private int[] incoming;
+    private int incomingHead = 0, incomingCount = 0;
+    private long firstIncomingTime;
+    private boolean receivePending = false;
+
+    private int[] outgoing;
+    private int outgoingHead = 0, outgoingCount = 0;
+    private int numUnreportedSends = 0;
+    private long firstUnreportedSendTime;
 
     private boolean prevCarriageReturn = false;
 }
@@ -44,6 +44,11 @@ public final class Stats {
      * The total amount of simulated time that Nachos has spent in user mode.
      */
     public long userTicks = 0;
+    /**
+     * The part of <tt>kernelTicks</tt> that was skipped over while no thread
+     * could run (see <tt>Interrupt.idle()</tt>).
+     */
+    public long idleTicks = 0;
 
     /** The total number of sectors Nachos has read from the simulated disk.*/
     public int numDiskReads = 0;
@@ -5,7 +5,9 @@ package nachos.machine;
 import nachos.security.*;
 import nachos.threads.KThread;
 
+import java.lang.reflect.Method;
 import java.util.Vector;
+import java.util.concurrent.locks.LockSupport;
 import java.security.PrivilegedAction;
 
 /**
@@ -14,6 +16,18 @@ import java.security.PrivilegedAction;
  * object.
  *
  * <p>
+ * Only one TCB's thread runs at a time. A context switch unparks the next
+ * thread and parks the current one (see <tt>LockSupport</tt>). If the
+ * <tt>TCB.virtualThreads</tt> configuration key is <tt>true</tt>, the JVM
+ * threads are virtual threads, which are cheaper to create and switch
+ * between, and up to <tt>maxVirtualThreads</tt> TCBs may exist instead of
+ * <tt>maxThreads</tt>. Virtual threads require a Java 21 or later JVM; they
+ * are created by reflection, so Nachos still builds against older class
+ * libraries. They cannot run under the Nachos security manager, so the JVM
+ * must not allow one (<tt>bin/nachos</tt> does not when <tt>nachos.conf</tt>
+ * sets <tt>TCB.virtualThreads</tt>).
+ *
+ * <p>
  * Do not use any methods in <tt>java.lang.Thread</tt>, as they are not
  * compatible with the TCB API. Most <tt>Thread</tt> methods will either crash
  * Nachos or have no useful effect.
@@ -40,6 +54,21 @@ public final class TCB {
     public static void givePrivilege(Privilege privilege) {
 	TCB.privilege = privilege;
 	privilege.tcb = new TCBPrivilege();
+
+	if (Config.getBoolean("TCB.virtualThreads", false)) {
+	    try {
+		virtualThreadBuilder =
+		    Thread.class.getMethod("ofVirtual").invoke(null);
+		unstartedVirtualThread =
+		    Class.forName("java.lang.Thread$Builder")
+		    .getMethod("unstarted", Runnable.class);
+	    }
+	    catch (Exception e) {
+		Lib.assertNotReached("TCB.virtualThreads requires Java 21");
+	    }
+
+	    threadLimit = maxVirtualThreads;
+	}
     }
     
     /**
@@ -66,7 +95,7 @@ public final class TCB {
 	/* Make sure there aren't too many running TCBs already. This
 	 * limitation exists in an effort to prevent wild thread usage.
 	 */
-	Lib.assertTrue(runningThreads.size() < maxThreads);
+	Lib.assertTrue(runningThreads.size() < threadLimit);
 
 	isFirstTCB = (currentTCB == null);
 
@@ -94,7 +123,7 @@ public final class TCB {
 		};
 
 	    privilege.doPrivileged(new Runnable() {
-		    public void run() { javaThread = new Thread(tcbTarget); }
+		    public void run() { javaThread = newThread(tcbTarget); }
 		});
 
 	    /* The Java thread hasn't yet started, but we need to get it
@@ -207,6 +236,39 @@ public final class TCB {
 		Thread.currentThread() == currentTCB.javaThread);
     }
 
+    /**
+     * Return the maximum number of started, non-destroyed TCBs that can be in
+     * existence: <tt>maxVirtualThreads</tt> if TCBs use virtual threads, and
+     * <tt>maxThreads</tt> otherwise.
+     *
+     * @return	the maximum number of TCBs.
+     */
+    public static int getThreadLimit() {
+	return threadLimit;
+    }
+
+    private static Thread newThread(Runnable target) {
+	if (virtualThreadBuilder == null)
+	    return new Thread(target);
+
+	/* Virtual threads run on carrier threads that the JVM starts on
+	 * demand, in whichever thread starts or unparks a virtual thread. The
+	 * security manager does not let Nachos threads start threads outside
+	 * privileged code, so the first carrier thread would fail to start.
+	 */
+	Lib.assertTrue(System.getSecurityManager() == null,
+		       "TCB.virtualThreads cannot run under a security manager");
+
+	try {
+	    return (Thread) unstartedVirtualThread.invoke(virtualThreadBuilder,
+							  target);
+	}
+	catch (Exception e) {
+	    Lib.assertNotReached("cannot create virtual thread");
+	    return null;
+	}
+    }
+
     private void threadroot() {
 	// this should be running the current thread
 	Lib.assertTrue(javaThread == Thread.currentThread());
@@ -280,29 +342,33 @@ public final class TCB {
     }
 
     /**
-     * Waits on the monitor bound to this TCB until its <tt>running</tt> flag
+     * Parks the Java thread bound to this TCB until its <tt>running</tt> flag
      * is set to <tt>true</tt>. <tt>waitForInterrupt()</tt> is used whenever a
      * TCB needs to go to wait for its turn to run. This includes the ping-pong
      * process of starting and destroying TCBs, as well as in context switching
      * from this TCB to another. We don't rely on <tt>currentTCB</tt>, since it
      * is updated by <tt>contextSwitch()</tt> before we get called.
+     *
+     * <p>
+     * <tt>park()</tt> can return spuriously, and an <tt>unpark()</tt> that
+     * comes first makes the next <tt>park()</tt> return at once, so the flag
+     * alone decides when to stop waiting. Since the flag is volatile, setting
+     * it also publishes everything the waking thread wrote before.
      */
-    private synchronized void waitForInterrupt() {
-	while (!running) {
-	    try { wait(); }
-	    catch (InterruptedException e) { }
-	}
+    private void waitForInterrupt() {
+	while (!running)
+	    LockSupport.park(this);
     }
 
     /**
      * Wake up this TCB by setting its <tt>running</tt> flag to <tt>true</tt>
-     * and signalling the monitor bound to it. Used in the ping-pong process of
-     * starting and destroying TCBs, as well as in context switching to this
+     * and unparking the Java thread bound to it. Used in the ping-pong process
+     * of starting and destroying TCBs, as well as in context switching to this
      * TCB.
      */
-    private synchronized void interrupt() {
+    private void interrupt() {
 	running = true;
-	notify();
+	LockSupport.unpark(javaThread);
     }
 
     private void associateThread(KThread thread) {
@@ -332,6 +398,12 @@ public final class TCB {
      */
     public static final int maxThreads = 250;
 
+    /**
+     * The maximum number of started, non-destroyed TCB's that can be in
+     * existence when they use virtual threads.
+     */
+    public static final int maxVirtualThreads = 10000;
+
     /**
      * A reference to the currently running TCB. It is initialized to
      * <tt>null</tt> when the <tt>TCB</tt> class is loaded, and then the first
@@ -354,7 +426,8 @@ public final class TCB {
      * on each TCB object. TCB objects are removed only in each of the
      * <tt>catch</tt> clauses of <tt>threadroot()</tt>, one of which is always
      * invoked on thread termination. The maximum number of threads in
-     * <tt>runningThreads</tt> is limited to <tt>maxThreads</tt> by
+     * <tt>runningThreads</tt> is limited to <tt>maxThreads</tt> (or
+     * <tt>maxVirtualThreads</tt>) by
      * <tt>start(Runnable)</tt>. If <tt>threadroot()</tt> drops the number of
      * TCB objects in <tt>runningThreads</tt> to zero, Nachos exits, so once
      * the first TCB is created, this vector is basically never empty.
@@ -364,6 +437,15 @@ public final class TCB {
     private static Privilege privilege;
     private static KThread toBeDestroyed = null;
 
+    private static int threadLimit = maxThreads;
+
+    /**
+     * If TCBs use virtual threads, a <tt>Thread.Builder.OfVirtual</tt> and
+     * its <tt>unstarted(Runnable)</tt> method; otherwise <tt>null</tt>.
+     */
+    private static Object virtualThreadBuilder = null;
+    private static Method unstartedVirtualThread = null;
+
     /**
      * <tt>true</tt> if and only if this TCB is the first TCB to start, the one
      * started in <tt>Machine.main(String[])</tt>. Initialized by
@@ -388,7 +470,7 @@ public final class TCB {
      * destroying a TCB, this is temporarily true for a thread other than that
      * of the current TCB.
      */
-    private boolean running = false;
+    private volatile boolean running = false;
 
     /**
      * Set to <tt>true</tt> by <tt>destroy()</tt>, so that when
@@ -13,6 +13,11 @@ import nachos.security.*;
  * interrupt to occur every time approximately 500 clock ticks pass. There is
  * a small degree of randomness here, so interrupts do not occur exactly every
  * 500 ticks.
+ *
+ * <p>
+ * The timer also has a one-shot alarm, which interrupts at a time the kernel
+ * chooses rather than periodically. Setting the alarm replaces any earlier
+ * setting that has not yet gone off.
  */
 public final class Timer {
     /**
@@ -30,6 +35,10 @@ public final class Timer {
 		public void run() { timerInterrupt(); }
 	    };
 	
+	alarmInterrupt = new Runnable() {
+		public void run() { alarmInterrupt(); }
+	    };
+
 	autoGraderInterrupt = new Runnable() {
 		public void run() {
 		    Machine.autoGrader().timerInterrupt(Timer.this.privilege,
@@ -50,6 +59,40 @@ public final class Timer {
 	this.handler = handler;
     }
 
+    /**
+     * Set the callback to use as an alarm interrupt handler. The alarm
+     * interrupt handler will be called once for each <tt>setAlarm()</tt>
+     * that is not replaced before it goes off.
+     *
+     * @param	handler		the alarm interrupt handler.
+     */
+    public void setAlarmHandler(Runnable handler) {
+	alarmHandler = handler;
+    }
+
+    /**
+     * Set the alarm to go off at the specified time, replacing any earlier
+     * setting. If that time has already passed, the alarm goes off on the
+     * next tick.
+     *
+     * @param	time	the time at which the alarm interrupt should occur.
+     */
+    public void setAlarm(long time) {
+	if (time == alarmTime)
+	    return;
+
+	alarmTime = time;
+	privilege.interrupt.schedule(Math.max(1, time - getTime()), "alarm",
+				     alarmInterrupt);
+    }
+
+    /**
+     * Cancel the alarm, if it is set.
+     */
+    public void cancelAlarm() {
+	alarmTime = Long.MAX_VALUE;
+    }
+
     /**
      * Get the current time.
      *
@@ -65,10 +108,24 @@ public final class Timer {
 
 	lastTimerInterrupt = getTime();
 
+	if (Machine.profiler() != null)
+	    Machine.profiler().sample();
+
 	if (handler != null)
 	    handler.run();
     }
 
+    private void alarmInterrupt() {
+	// an interrupt for a setting that was since replaced or cancelled
+	if (getTime() < alarmTime)
+	    return;
+
+	alarmTime = Long.MAX_VALUE;
+
+	if (alarmHandler != null)
+	    alarmHandler.run();
+    }
+
     private void scheduleInterrupt() {
 	int delay = Stats.TimerTicks;
 	delay += Lib.random(delay/10) - (delay/20);
@@ -83,7 +140,10 @@ public final class Timer {
     private long lastTimerInterrupt;
     private Runnable timerInterrupt;
     private Runnable autoGraderInterrupt;
+    private Runnable alarmInterrupt;
+    private long alarmTime = Long.MAX_VALUE;
 
     private Privilege privilege;
     private Runnable handler = null;
+    private Runnable alarmHandler = null;
 }
@@ -13,7 +13,8 @@ import nachos.threads.*;
  * The post office uses a "postal worker" thread to wait for messages to arrive
  * from the network and to place them in the appropriate queues. This cannot
  * be done in the receive interrupt handler because each queue (implemented
- * with a <tt>SynchList</tt>) is protected by a lock.
+ * with a <tt>SynchList</tt>) is protected by a lock. Each time it wakes up,
+ * the postal worker delivers every packet the network link has received.
  */
 public class PostOffice {
     /**
@@ -73,36 +74,39 @@ public class PostOffice {
 	while (true) {
 	    messageReceived.P();
 
-	    Packet p = Machine.networkLink().receive();
+	    Packet p;
+	    while ((p = Machine.networkLink().receive()) != null) {
+		MailMessage mail;
 
-	    MailMessage mail;
+		try {
+		    mail = new MailMessage(p);
+		}
+		catch (MalformedPacketException e) {
+		    continue;
+		}
 
-	    try {
-		mail = new MailMessage(p);
-	    }
-	    catch (MalformedPacketException e) {
-		continue;
-	    }
+		if (Lib.test(dbgNet))
+		    System.out.println("delivering mail to port " +
+				       mail.dstPort + ": " + mail);
 
-	    if (Lib.test(dbgNet))
-		System.out.println("delivering mail to port " + mail.dstPort
-				   + ": " + mail);
-
-	    // atomically add message to the mailbox and wake a waiting thread
-	    queues[mail.dstPort].add(mail);
+		// atomically add message to the mailbox and wake a waiting
+		// thread
+		queues[mail.dstPort].add(mail);
+	    }
 	}
     }
 
     /**
-     * Called when a packet has arrived and can be dequeued from the network
-     * link.
+     * Called when one or more packets have arrived and can be dequeued from
+     * the network link.
      */
     private void receiveInterrupt() {
 	messageReceived.V();
     }
 
     /**
-     * Send a message to a mailbox on a remote machine.
+     * Send a message to a mailbox on a remote machine. Returns once the
+     * network link has room to queue another message.
      */
     public void send(MailMessage mail) {
 	if (Lib.test(dbgNet))
@@ -111,14 +115,15 @@ public class PostOffice {
 	sendLock.acquire();
 
 	Machine.networkLink().send(mail.packet);
-	messageSent.P();
+	while (!Machine.networkLink().canSend())
+	    messageSent.P();
 
 	sendLock.release();
     }
 
     /**
-     * Called when a packet has been sent and another can be queued to the
-     * network link. Note that this is called even if the previous packet was
+     * Called when one or more packets have been sent and more can be queued
+     * to the network link. Note that this is called even if the packets were
      * dropped.
      */
     private void sendInterrupt() {
@@ -126,8 +131,8 @@ public class PostOffice {
     }
 
     private SynchList[] queues;
-    private Semaphore messageReceived;	// V'd when a message can be dequeued
-    private Semaphore messageSent;	// V'd when a message can be queued
+    private Semaphore messageReceived;	// V'd when messages can be dequeued
+    private Semaphore messageSent;	// V'd when messages can be queued
     private Lock sendLock;
 
     private static final char dbgNet = 'n';
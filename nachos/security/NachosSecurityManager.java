@@ -42,14 +42,22 @@ public class NachosSecurityManager extends SecurityManager {
     }
 
     /**
-     * Install this security manager.
+     * Install this security manager. Java 18 and later only allow this if
+     * the JVM was started with <tt>-Djava.security.manager=allow</tt> (which
+     * <tt>bin/nachos</tt> passes), and Java 24 and later not at all. If the
+     * JVM refuses, Nachos says so as it initializes, and runs without one.
      */
     public void enable() {
 	Lib.assertTrue(this != System.getSecurityManager());
 	
 	doPrivileged(new Runnable() {
 	    public void run() {
-		System.setSecurityManager(NachosSecurityManager.this);
+		try {
+		    System.setSecurityManager(NachosSecurityManager.this);
+		}
+		catch (UnsupportedOperationException e) {
+		    System.out.print(" (no security manager)");
+		}
 	    }
 	});
     }
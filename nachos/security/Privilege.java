@@ -158,6 +158,16 @@ public abstract class Privilege {
 	 *		MIPS user code.
 	 */
 	public void tick(boolean inKernelMode);
+
+	/**
+	 * Return the number of ticks that can pass before the next pending
+	 * interrupt is due. A caller that advances the simulated time by less
+	 * than this amount will not skip over any interrupt handler.
+	 *
+	 * @return	the number of ticks until the next pending interrupt, or
+	 *		<tt>0</tt> if every tick must be observed individually.
+	 */
+	public long ticksUntilNextInterrupt();
     }
 
     /**
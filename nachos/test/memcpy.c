@@ -1,10 +1,14 @@
 #include "stdlib.h"
 
 void *memcpy(void *s1, const void *s2, unsigned n) {
+#ifdef HOSTMEM
+  return hostmemcpy(s1, s2, n);
+#else
   int i;
 
   for (i=0; i<n; i++)
     ((char*)s1)[i] = ((char*)s2)[i];
 
   return s1;
+#endif
 }
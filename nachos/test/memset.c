@@ -1,10 +1,14 @@
 #include "stdlib.h"
 
 void *memset(void *s, int c, unsigned int n) {
+#ifdef HOSTMEM
+  return hostmemset(s, c, n);
+#else
   int i;
 
   for (i=0; i<n; i++)
     ((char*)s)[i] = (char) c;
 
   return s;
+#endif
 }
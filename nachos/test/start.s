@@ -67,3 +67,6 @@ name:				; \
 	SYSCALLSTUB(mmap, syscallMmap)
 	SYSCALLSTUB(connect, syscallConnect)
 	SYSCALLSTUB(accept, syscallAccept)
+	SYSCALLSTUB(hostmemcpy, syscallMemcpy)
+	SYSCALLSTUB(hostmemset, syscallMemset)
+	SYSCALLSTUB(hoststrlen, syscallStrlen)
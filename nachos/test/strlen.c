@@ -2,10 +2,14 @@
 
 /* returns the length of the character string str, not including the null-terminator */
 unsigned strlen(const char *str) {
+#ifdef HOSTMEM
+  return hoststrlen(str);
+#else
   int result=0;
 
   while (*(str++) != 0)
     result++;
 
   return result;
+#endif
 }
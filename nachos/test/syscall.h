@@ -25,6 +25,9 @@
 #define syscallMmap		10
 #define syscallConnect		11
 #define syscallAccept		12
+#define syscallMemcpy		20
+#define syscallMemset		21
+#define syscallStrlen		22
 
 /* Don't want the assembler to see C code, but start.s includes syscall.h. */
 #ifndef START_S
@@ -76,7 +79,7 @@ void exit(int status);
  *
  * file is a null-terminated string that specifies the name of the file
  * containing the executable. Note that this string must include the ".coff"
- * extension.
+ * extension (or be a ".ckpt" process checkpoint saved by the kernel).
  *
  * argc specifies the number of arguments to pass to the child process. This
  * number must be non-negative.
@@ -257,6 +260,37 @@ int connect(int host, int port);
  */
 int accept(int port);
 
+/* HOST MEMORY SYSCALLS: hostmemcpy, hostmemset, hoststrlen
+ *
+ * These do the work of memcpy(), memset() and strlen() in the kernel, a page
+ * at a time, instead of one byte at a time in user code. Each behaves like
+ * the library function it replaces, including faulting in pages and marking
+ * them used (and, when written, dirty). If any part of a buffer is invalid
+ * (or read-only, for a buffer being written), the process is terminated, as
+ * it would have been by the equivalent loop. A length of 2^31 or more is
+ * rejected, and the call returns -1.
+ *
+ * libnachos uses these when built with HOSTMEM=1 (see the Makefile).
+ */
+
+/**
+ * Copy n bytes from src to dst. The buffers may overlap, in which case the
+ * bytes are copied as if through a temporary buffer, like memmove(). Returns
+ * dst.
+ */
+void *hostmemcpy(void *dst, const void *src, unsigned int n);
+
+/**
+ * Set n bytes starting at s to c, converted to a char. Returns s.
+ */
+void *hostmemset(void *s, int c, unsigned int n);
+
+/**
+ * Returns the length of the null-terminated string str, not including the
+ * null terminator.
+ */
+unsigned int hoststrlen(const char *str);
+
 #endif /* START_S */
 
 #endif /* SYSCALL_H */
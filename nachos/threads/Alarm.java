@@ -1,6 +1,6 @@
 package nachos.threads;
 
-import java.util.LinkedList;
+import java.util.PriorityQueue;
 import nachos.machine.*;
 
 /**
@@ -9,9 +9,8 @@ import nachos.machine.*;
  */
 public class Alarm {
 
-    private LinkedList<KThread> lkKthreads;
-    private LinkedList<Long> lTimeTicks;
-    private static int contador = 0;
+    private PriorityQueue<Sleeper> sleepers;
+    private long numSleepers = 0;
 
     /**
      * Allocate a new Alarm. Set the machine's timer interrupt handler to this
@@ -21,8 +20,7 @@ public class Alarm {
      * alarm.
      */
     public Alarm() {
-        lkKthreads = new LinkedList<KThread>();
-        lTimeTicks = new LinkedList<Long>();
+        sleepers = new PriorityQueue<Sleeper>();
 
         System.out.println("*** alamr " + Machine.timer().getTime());
         Machine.timer().setInterruptHandler(new Runnable() {
@@ -30,67 +28,110 @@ public class Alarm {
                 timerInterrupt();
             }
         });
+        Machine.timer().setAlarmHandler(new Runnable() {
+            public void run() {
+                alarmInterrupt();
+            }
+        });
     }
 
     /**
      * The timer interrupt handler. This is called by the machine's timer
      * periodically (approximately every 500 clock ticks). Causes the current
      * thread to yield, forcing a context switch if there is another thread that
-     * should be run.
+     * should be run, unless the scheduler decides it should keep running.
+     *
+     * @see nachos.threads.Scheduler#timerInterrupt()
      */
     public void timerInterrupt() {
-        //System.out.println("Contador " + contador++);
-
-        boolean intStatus = Machine.interrupt().disable();
-
-        int i = lTimeTicks.size() - 1;
-
-        while (i >= 0) {
-            //System.out.println("  val  " + i);
-            KThread tempThread = lkKthreads.get(i);
-            Long tempTime = lTimeTicks.get(i);
-
-            if (tempTime.longValue() <= Machine.timer().getTime()) {
-                // En caso el timer del thread , ya termino. 
+        if (ThreadedKernel.scheduler.timerInterrupt()) {
+            KThread.yield();
+        }
+    }
 
-                //System.out.println("AQUI CUMPLIO " + tempTime.longValue() + " - " + Machine.timer().getTime());
-                tempThread.ready();
-                lkKthreads.remove(i);
-                lTimeTicks.remove(i);
+    /**
+     * The alarm interrupt handler. This is called by the machine's timer when
+     * the earliest wake time arrives. Wakes every sleeping thread whose time
+     * has come, then sets the timer's alarm for the next one. Yields if the
+     * scheduler wants a woken thread to run at once.
+     */
+    private void alarmInterrupt() {
+        long time = Machine.timer().getTime();
 
-            }
-            i--;
+        while (!sleepers.isEmpty() && sleepers.peek().wakeTime <= time) {
+            sleepers.poll().thread.ready();
         }
 
-        Machine.interrupt().restore(intStatus);
-        KThread.yield();
+        if (!sleepers.isEmpty()) {
+            Machine.timer().setAlarm(sleepers.peek().wakeTime);
+        }
 
+        if (ThreadedKernel.scheduler.threadsWoken()) {
+            KThread.yield();
+        }
     }
 
     /**
      * Put the current thread to sleep for at least <i>x</i> ticks, waking it up
-     * in the timer interrupt handler. The thread must be woken up (placed in
-     * the scheduler ready set) during the first timer interrupt where
+     * in the alarm interrupt handler. The thread is woken up (placed in the
+     * scheduler ready set) at the first tick where
      *
      * <p><blockquote>
      * (current time) >= (WaitUntil called time)+(x)
      * </blockquote>
      *
+     * <p>
+     * Sleeping threads are kept in a heap ordered by wake time, so sleeping
+     * and waking each take time logarithmic in the number of sleepers. Threads
+     * with the same wake time are woken in the order they went to sleep.
+     *
      * @param x the minimum number of clock ticks to wait.
      *
      * @see nachos.machine.Timer#getTime()
      */
     public void waitUntil(long x) {
-        // for now, cheat just to get something working (busy waiting is bad)
-        boolean inicialSt = Machine.interrupt().disable();
-        long wakeTime = Machine.timer().getTime() + x;
-        if (KThread.currentThread() != null)
-        {
-        lkKthreads.addFirst(KThread.currentThread());
-        lTimeTicks.addFirst(wakeTime);
-        KThread.currentThread().sleep();
-        Machine.interrupt().restore(inicialSt);
+        if (x <= 0) {
+            return;
+        }
+
+        boolean intStatus = Machine.interrupt().disable();
+
+        Sleeper sleeper = new Sleeper(Machine.timer().getTime() + x,
+                KThread.currentThread(), numSleepers++);
+        ThreadedKernel.scheduler.sleepingUntil(sleeper.wakeTime);
+        sleepers.add(sleeper);
+
+        if (sleepers.peek() == sleeper) {
+            Machine.timer().setAlarm(sleeper.wakeTime);
+        }
+
+        KThread.sleep();
+        Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * A thread waiting in <tt>waitUntil()</tt>.
+     */
+    private static class Sleeper implements Comparable<Sleeper> {
+
+        Sleeper(long wakeTime, KThread thread, long id) {
+            this.wakeTime = wakeTime;
+            this.thread = thread;
+            this.id = id;
+        }
+
+        public int compareTo(Sleeper other) {
+            if (wakeTime != other.wakeTime) {
+                return (wakeTime < other.wakeTime) ? -1 : 1;
+            } else if (id != other.id) {
+                return (id < other.id) ? -1 : 1;
+            } else {
+                return 0;
+            }
         }
 
+        long wakeTime;
+        KThread thread;
+        long id;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,292 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.TreeSet;
+
+/**
+ * A fair scheduler in the style of the Linux completely fair scheduler. Each
+ * thread accumulates a virtual runtime: the ticks it has run, scaled down by
+ * its weight. The ready thread with the least virtual runtime always runs
+ * next, so over time every thread gets a share of the processor proportional
+ * to its weight.
+ *
+ * <p>
+ * Weights come from the thread's priority, which ranges over the same values
+ * as <tt>PriorityScheduler</tt>'s. The default priority has weight 1024, and
+ * each priority step above or below it is worth three Linux nice levels
+ * (roughly a factor of two).
+ *
+ * <p>
+ * Ready threads are kept in a red-black tree ordered by virtual runtime. The
+ * running thread is preempted at a timer interrupt once its virtual runtime
+ * exceeds the least ready one by <tt>CFSScheduler.granularity</tt> ticks. A
+ * thread that was blocked, or is new, is placed no further back than the least
+ * virtual runtime minus <tt>CFSScheduler.sleeperCredit</tt> ticks, so it runs
+ * soon after it wakes, but cannot bank the time it spent asleep.
+ *
+ * <p>
+ * As with <tt>MLFQScheduler</tt>, the queues of synchronization primitives are
+ * first-come first-served; only the ready queue is ordered by virtual runtime.
+ */
+public class CFSScheduler extends Scheduler {
+
+    /**
+     * Allocate a new fair scheduler.
+     */
+    public CFSScheduler() {
+        granularity = Config.getInteger("CFSScheduler.granularity", 1000);
+        sleeperCredit = Config.getInteger("CFSScheduler.sleeperCredit", 500);
+
+        Lib.assertTrue(granularity > 0 && sleeperCredit >= 0,
+                "bad CFSScheduler configuration");
+    }
+
+    /**
+     * Allocate a new FIFO thread queue.
+     *
+     * @param	transferPriority	ignored.
+     * @return	a new FIFO thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+        return fifoScheduler.newThreadQueue(transferPriority);
+    }
+
+    /**
+     * Allocate the ready queue, ordered by virtual runtime.
+     *
+     * @return	the ready queue.
+     */
+    public ThreadQueue newReadyQueue() {
+        Lib.assertTrue(readyQueue == null);
+
+        readyQueue = new ReadyQueue();
+        return readyQueue;
+    }
+
+    public int getPriority(KThread thread) {
+        Lib.assertTrue(Machine.interrupt().disabled());
+
+        return getThreadState(thread).priority;
+    }
+
+    public int getEffectivePriority(KThread thread) {
+        return getPriority(thread);
+    }
+
+    public void setPriority(KThread thread, int priority) {
+        Lib.assertTrue(Machine.interrupt().disabled());
+
+        Lib.assertTrue(priority >= PriorityScheduler.priorityMinimum
+                && priority <= PriorityScheduler.priorityMaximum);
+
+        // the weight only matters when the thread's runtime is next charged,
+        // which happens before it would be moved in the tree
+        getThreadState(thread).priority = priority;
+    }
+
+    public boolean increasePriority() {
+        boolean intStatus = Machine.interrupt().disable();
+
+        KThread thread = KThread.currentThread();
+
+        int priority = getPriority(thread);
+        if (priority == PriorityScheduler.priorityMaximum) {
+            Machine.interrupt().restore(intStatus);
+            return false;
+        }
+
+        setPriority(thread, priority + 1);
+
+        Machine.interrupt().restore(intStatus);
+        return true;
+    }
+
+    public boolean decreasePriority() {
+        boolean intStatus = Machine.interrupt().disable();
+
+        KThread thread = KThread.currentThread();
+
+        int priority = getPriority(thread);
+        if (priority == PriorityScheduler.priorityMinimum) {
+            Machine.interrupt().restore(intStatus);
+            return false;
+        }
+
+        setPriority(thread, priority - 1);
+
+        Machine.interrupt().restore(intStatus);
+        return true;
+    }
+
+    /**
+     * Charge the running thread for the time since it was last charged, and
+     * preempt it if it has run far enough ahead of the least ready thread.
+     *
+     * @return	<tt>true</tt> if the current thread should yield.
+     */
+    public boolean timerInterrupt() {
+        Lib.assertTrue(Machine.interrupt().disabled());
+
+        if (running == null || readyQueue.threads.isEmpty()) {
+            return running == null;
+        }
+
+        charge(Machine.timer().getTime());
+
+        return running.vruntime - readyQueue.threads.first().vruntime
+                >= granularity;
+    }
+
+    /**
+     * Print the number of dispatches and the least virtual runtime.
+     */
+    public void printStats() {
+        System.out.println("CFS: dispatches " + dispatches
+                + ", min vruntime " + minVruntime);
+    }
+
+    /**
+     * Add the ticks since <tt>running</tt> was last charged to its virtual
+     * runtime, scaled by its weight.
+     */
+    private void charge(long time) {
+        running.vruntime += (time - runningSince) * weights[priorityDefault]
+                / weights[running.priority];
+        runningSince = time;
+    }
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param	thread	the thread whose scheduling state to return.
+     * @return	the scheduling state of the specified thread.
+     */
+    protected ThreadState getThreadState(KThread thread) {
+        if (thread.schedulingState == null) {
+            thread.schedulingState = new ThreadState(thread);
+        }
+
+        return (ThreadState) thread.schedulingState;
+    }
+
+    /**
+     * The ready queue, a tree of threads ordered by virtual runtime.
+     */
+    private class ReadyQueue extends ThreadQueue {
+
+        /**
+         * Add a thread to the tree. The running thread is charged first; any
+         * other thread was blocked or is new, and is placed relative to the
+         * least virtual runtime.
+         */
+        public void waitForAccess(KThread thread) {
+            Lib.assertTrue(Machine.interrupt().disabled());
+
+            ThreadState state = getThreadState(thread);
+
+            if (state == running) {
+                charge(Machine.timer().getTime());
+            } else {
+                state.vruntime = Math.max(state.vruntime,
+                        minVruntime - sleeperCredit);
+            }
+
+            threads.add(state);
+        }
+
+        public KThread nextThread() {
+            Lib.assertTrue(Machine.interrupt().disabled());
+
+            long time = Machine.timer().getTime();
+            if (running != null) {
+                charge(time);
+            }
+
+            ThreadState next = threads.pollFirst();
+            running = next;
+            runningSince = time;
+
+            if (next == null) {
+                return null;
+            }
+
+            // the least virtual runtime never goes backwards
+            minVruntime = Math.max(minVruntime, next.vruntime);
+            dispatches++;
+
+            return next.thread;
+        }
+
+        public void acquire(KThread thread) {
+            Lib.assertTrue(Machine.interrupt().disabled());
+
+            Lib.assertTrue(threads.isEmpty());
+
+            running = getThreadState(thread);
+            runningSince = Machine.timer().getTime();
+        }
+
+        public void print() {
+            Lib.assertTrue(Machine.interrupt().disabled());
+
+            for (ThreadState state : threads) {
+                System.out.print(state.thread + "(" + state.vruntime + ") ");
+            }
+        }
+
+        TreeSet<ThreadState> threads = new TreeSet<ThreadState>();
+    }
+
+    /**
+     * The scheduling state of a thread: its priority and virtual runtime.
+     */
+    protected class ThreadState implements Comparable<ThreadState> {
+
+        ThreadState(KThread thread) {
+            this.thread = thread;
+            id = numThreadStates++;
+            vruntime = minVruntime;
+        }
+
+        public int compareTo(ThreadState other) {
+            if (vruntime != other.vruntime) {
+                return (vruntime < other.vruntime) ? -1 : 1;
+            } else if (id != other.id) {
+                return (id < other.id) ? -1 : 1;
+            } else {
+                return 0;
+            }
+        }
+
+        KThread thread;
+        long id;
+        int priority = priorityDefault;
+        /** The virtual runtime; must not change while in the tree. */
+        long vruntime;
+    }
+
+    private static final int priorityDefault = PriorityScheduler.priorityDefault;
+
+    /**
+     * The weight of each priority, from the Linux nice-to-weight table for
+     * nice levels 3, 0, -3, ..., -18.
+     */
+    private static final int[] weights = {
+        526, 1024, 1991, 3906, 7620, 14949, 29154, 56483
+    };
+
+    private int granularity;
+    private int sleeperCredit;
+
+    private RoundRobinScheduler fifoScheduler = new RoundRobinScheduler();
+    private ReadyQueue readyQueue = null;
+
+    /** The thread the ready queue last dispatched, and when it was charged. */
+    private ThreadState running = null;
+    private long runningSince = 0;
+
+    private long minVruntime = 0;
+    private long numThreadStates = 0;
+    private long dispatches = 0;
+}
@@ -0,0 +1,466 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.LinkedList;
+import java.util.TreeSet;
+
+/**
+ * A scheduler with two classes of threads. Real-time threads are scheduled
+ * earliest deadline first, and always run ahead of best-effort threads, which
+ * are scheduled round-robin.
+ *
+ * <p>
+ * A thread becomes real-time with <tt>setRealTime()</tt>, which declares a
+ * period, a budget and a relative deadline, all in ticks. Each time the
+ * thread is woken from <tt>Alarm.waitUntil()</tt>, or first becomes ready,
+ * it releases a job: the job's deadline is its release time plus the
+ * relative deadline, and it may run for the budget. A job released less than
+ * a period after the previous one is treated as released a period after it,
+ * so a thread cannot take more than its share by waking early. The job
+ * completes when the thread next sleeps in <tt>Alarm.waitUntil()</tt>;
+ * blocking on a lock or semaphore does not complete it.
+ *
+ * <p>
+ * Admission control rejects a thread if the total density (budget over
+ * relative deadline) of the real-time threads would exceed
+ * <tt>EDFScheduler.maxUtilization</tt>, which defaults to 1. Under that bound
+ * every job meets its deadline as long as each thread stays within its
+ * budget. A thread's density is returned when it finishes, or when
+ * <tt>clearRealTime()</tt> returns it to the best-effort class. Budgets are
+ * enforced at timer interrupts: a job that has used its budget is given a
+ * fresh budget with its deadline pushed back a period, so an overrunning
+ * thread delays only itself. A newly woken job with an earlier
+ * deadline preempts the running thread as soon as the alarm wakes it.
+ *
+ * <p>
+ * Released jobs, missed deadlines and budget overruns are counted, and
+ * printed when the kernel terminates, including when a user program calls
+ * <tt>halt()</tt>.
+ */
+public class EDFScheduler extends Scheduler {
+
+    /**
+     * Allocate a new EDF scheduler.
+     */
+    public EDFScheduler() {
+        maxUtilization = Config.getDouble("EDFScheduler.maxUtilization", 1.0);
+
+        Lib.assertTrue(maxUtilization > 0, "bad EDFScheduler configuration");
+    }
+
+    /**
+     * Allocate a new FIFO thread queue.
+     *
+     * @param	transferPriority	ignored.
+     * @return	a new FIFO thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+        return fifoScheduler.newThreadQueue(transferPriority);
+    }
+
+    /**
+     * Allocate the ready queue, which holds both classes of threads.
+     *
+     * @return	the ready queue.
+     */
+    public ThreadQueue newReadyQueue() {
+        Lib.assertTrue(readyQueue == null);
+
+        readyQueue = new ReadyQueue();
+        return readyQueue;
+    }
+
+    /**
+     * Make the specified thread real-time, or change its parameters if it
+     * already is. Must be called with interrupts disabled. The new parameters
+     * take effect with the thread's next job.
+     *
+     * @param	thread	the thread.
+     * @param	period	the minimum time between the thread's jobs.
+     * @param	budget	the time each job may run.
+     * @param	deadline	the time after its release by which each job must
+     * finish.
+     * @return	<tt>true</tt> if the thread was admitted, or <tt>false</tt> if
+     * that would overcommit the processor, in which case nothing changes.
+     */
+    public boolean setRealTime(KThread thread, long period, long budget,
+            long deadline) {
+        Lib.assertTrue(Machine.interrupt().disabled());
+
+        Lib.assertTrue(budget > 0 && budget <= deadline && deadline <= period);
+
+        ThreadState state = getThreadState(thread);
+
+        double density = (double) budget / deadline;
+        double others = utilization - (state.realTime ? state.density() : 0);
+        if (others + density > maxUtilization + rounding) {
+            return false;
+        }
+
+        boolean queued = readyQueue.remove(state);
+
+        if (!state.realTime) {
+            numRealTime++;
+        }
+        utilization = others + density;
+        state.realTime = true;
+        state.period = period;
+        state.budget = budget;
+        state.relativeDeadline = deadline;
+
+        if (queued) {
+            readyQueue.add(state);
+        }
+
+        return true;
+    }
+
+    /**
+     * Return the specified thread to the best-effort class. Must be called
+     * with interrupts disabled.
+     *
+     * @param	thread	the thread.
+     */
+    public void clearRealTime(KThread thread) {
+        Lib.assertTrue(Machine.interrupt().disabled());
+
+        ThreadState state = getThreadState(thread);
+        if (!state.realTime) {
+            return;
+        }
+
+        boolean queued = readyQueue.remove(state);
+
+        // start over from exactly 0, so rounding errors don't build up
+        numRealTime--;
+        utilization = (numRealTime == 0) ? 0 : utilization - state.density();
+        state.realTime = false;
+        state.inJob = false;
+
+        if (queued) {
+            readyQueue.add(state);
+        }
+    }
+
+    /**
+     * Return a finishing real-time thread's density to the real-time class.
+     */
+    public void threadFinishing(KThread thread) {
+        Lib.assertTrue(Machine.interrupt().disabled());
+
+        clearRealTime(thread);
+    }
+
+    /**
+     * Return the total density of the admitted real-time threads.
+     *
+     * @return	the utilization of the real-time class.
+     */
+    public double getUtilization() {
+        return utilization;
+    }
+
+    /**
+     * Print the number of jobs released, deadlines missed and budget
+     * overruns.
+     */
+    public void printStats() {
+        System.out.println("EDF: jobs " + numJobs + ", misses " + numMisses
+                + ", budget overruns " + numOverruns);
+    }
+
+    /**
+     * Charge the running thread, enforcing its budget if it is real-time.
+     *
+     * @return	<tt>true</tt> if a ready thread should run instead.
+     */
+    public boolean timerInterrupt() {
+        Lib.assertTrue(Machine.interrupt().disabled());
+
+        if (running != null) {
+            charge(Machine.timer().getTime());
+        }
+
+        if (running == null || !running.realTime) {
+            return true;
+        }
+
+        return readyQueue.preempts(running);
+    }
+
+    /**
+     * Complete the current thread's job, if it is real-time.
+     */
+    public void sleepingUntil(long wakeTime) {
+        Lib.assertTrue(Machine.interrupt().disabled());
+
+        ThreadState state = getThreadState(KThread.currentThread());
+        if (!state.realTime || !state.inJob) {
+            return;
+        }
+
+        charge(Machine.timer().getTime());
+        state.inJob = false;
+    }
+
+    /**
+     * @return	<tt>true</tt> if a woken job has an earlier deadline than the
+     * running thread's.
+     */
+    public boolean threadsWoken() {
+        Lib.assertTrue(Machine.interrupt().disabled());
+
+        if (running != null) {
+            charge(Machine.timer().getTime());
+        }
+
+        return readyQueue.preempts(running);
+    }
+
+    /**
+     * Charge the running thread for the ticks since it was last charged. A
+     * real-time job that has used its budget has it replenished with its
+     * deadline pushed back a period, and one still running after the
+     * deadline it was released with is counted as a miss.
+     */
+    private void charge(long time) {
+        ThreadState state = running;
+        long ticks = time - runningSince;
+        runningSince = time;
+
+        if (!state.realTime || !state.inJob) {
+            return;
+        }
+
+        state.remaining -= ticks;
+        if (state.remaining <= 0) {
+            numOverruns++;
+            while (state.remaining <= 0) {
+                state.remaining += state.budget;
+                state.deadline += state.period;
+            }
+        }
+
+        // a postponed deadline still counts as missed if the job's first
+        // deadline passed
+        if (!state.missed
+                && time > state.releaseTime + state.relativeDeadline) {
+            state.missed = true;
+            numMisses++;
+        }
+    }
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param	thread	the thread whose scheduling state to return.
+     * @return	the scheduling state of the specified thread.
+     */
+    protected ThreadState getThreadState(KThread thread) {
+        if (thread.schedulingState == null) {
+            thread.schedulingState = new ThreadState(thread);
+        }
+
+        return (ThreadState) thread.schedulingState;
+    }
+
+    /**
+     * The ready queue: a tree of real-time threads ordered by deadline, and a
+     * FIFO list of best-effort threads.
+     */
+    private class ReadyQueue extends ThreadQueue {
+
+        /**
+         * Add a thread to its class. A real-time thread with no job in
+         * progress was woken, or is new, so it releases a new job first.
+         */
+        public void waitForAccess(KThread thread) {
+            Lib.assertTrue(Machine.interrupt().disabled());
+
+            ThreadState state = getThreadState(thread);
+            long time = Machine.timer().getTime();
+
+            if (state == running) {
+                charge(time);
+            }
+
+            if (state.realTime && !state.inJob) {
+                state.release(time);
+            }
+
+            add(state);
+        }
+
+        public KThread nextThread() {
+            Lib.assertTrue(Machine.interrupt().disabled());
+
+            long time = Machine.timer().getTime();
+            if (running != null) {
+                charge(time);
+            }
+
+            ThreadState next = realTime.pollFirst();
+            if (next == null) {
+                next = bestEffort.poll();
+            }
+
+            running = next;
+            runningSince = time;
+
+            if (next == null) {
+                return null;
+            }
+
+            next.queued = false;
+            return next.thread;
+        }
+
+        public void acquire(KThread thread) {
+            Lib.assertTrue(Machine.interrupt().disabled());
+
+            Lib.assertTrue(realTime.isEmpty() && bestEffort.isEmpty());
+
+            running = getThreadState(thread);
+            runningSince = Machine.timer().getTime();
+        }
+
+        /**
+         * Return <tt>true</tt> if a ready thread should preempt
+         * <i>state</i>, which is running, or <tt>null</tt> if only the idle
+         * thread is.
+         */
+        boolean preempts(ThreadState state) {
+            if (realTime.isEmpty()) {
+                return false;
+            }
+
+            return state == null || !state.realTime || !state.inJob
+                    || realTime.first().deadline < state.deadline;
+        }
+
+        void add(ThreadState state) {
+            state.queued = true;
+
+            if (state.realTime && state.inJob) {
+                realTime.add(state);
+            } else {
+                bestEffort.add(state);
+            }
+        }
+
+        /**
+         * Remove a thread from the ready queue, if it is there.
+         *
+         * @return	<tt>true</tt> if it was.
+         */
+        boolean remove(ThreadState state) {
+            if (!state.queued) {
+                return false;
+            }
+
+            if (!realTime.remove(state)) {
+                bestEffort.remove(state);
+            }
+            state.queued = false;
+
+            return true;
+        }
+
+        public void print() {
+            Lib.assertTrue(Machine.interrupt().disabled());
+
+            for (ThreadState state : realTime) {
+                System.out.print(state.thread + "(" + state.deadline + ") ");
+            }
+            for (ThreadState state : bestEffort) {
+                System.out.print(state.thread + " ");
+            }
+        }
+
+        private TreeSet<ThreadState> realTime = new TreeSet<ThreadState>();
+        private LinkedList<ThreadState> bestEffort =
+                new LinkedList<ThreadState>();
+    }
+
+    /**
+     * The scheduling state of a thread: its class, and for a real-time thread
+     * its parameters and current job.
+     */
+    protected class ThreadState implements Comparable<ThreadState> {
+
+        ThreadState(KThread thread) {
+            this.thread = thread;
+            id = numThreadStates++;
+        }
+
+        /**
+         * Release a new job at <i>time</i>, or a period after the previous
+         * job if that is later.
+         */
+        void release(long time) {
+            if (released) {
+                time = Math.max(time, releaseTime + period);
+            }
+
+            released = true;
+            releaseTime = time;
+            deadline = time + relativeDeadline;
+            remaining = budget;
+            inJob = true;
+            missed = false;
+
+            numJobs++;
+        }
+
+        double density() {
+            return (double) budget / relativeDeadline;
+        }
+
+        public int compareTo(ThreadState other) {
+            if (deadline != other.deadline) {
+                return (deadline < other.deadline) ? -1 : 1;
+            } else if (id != other.id) {
+                return (id < other.id) ? -1 : 1;
+            } else {
+                return 0;
+            }
+        }
+
+        KThread thread;
+        long id;
+        /** <tt>true</tt> if the thread is in the ready queue. */
+        boolean queued = false;
+
+        boolean realTime = false;
+        long period, budget, relativeDeadline;
+
+        /** <tt>true</tt> if the thread has a job that has not completed. */
+        boolean inJob = false;
+        boolean released = false;
+        long releaseTime;
+        /** The absolute deadline; must not change while in the tree. */
+        long deadline;
+        long remaining;
+        boolean missed;
+    }
+
+    private double maxUtilization;
+    private double utilization = 0;
+    private int numRealTime = 0;
+    /**
+     * Densities are added and subtracted in floating point, so admission
+     * control allows this much rounding error.
+     */
+    private static final double rounding = 1e-9;
+
+    private RoundRobinScheduler fifoScheduler = new RoundRobinScheduler();
+    private ReadyQueue readyQueue = null;
+
+    /** The thread the ready queue last dispatched, and when it was charged. */
+    private ThreadState running = null;
+    private long runningSince = 0;
+
+    private long numThreadStates = 0;
+    private long numJobs = 0, numMisses = 0, numOverruns = 0;
+}
@@ -47,7 +47,7 @@ public class KThread {
         if (currentThread != null) {
             tcb = new TCB();
         } else {
-            readyQueue = ThreadedKernel.scheduler.newThreadQueue(false);
+            readyQueue = ThreadedKernel.scheduler.newReadyQueue();
             readyQueue.acquire(this);
 
             currentThread = this;
@@ -115,6 +115,17 @@ public class KThread {
         return (name + " (#" + id + ")");
     }
 
+    /**
+     * Get the address space this thread runs in. Kernel threads do not have
+     * one of their own and return <tt>null</tt>. Schedulers can use this to
+     * run threads that share an address space back to back.
+     *
+     * @return	the address space, or <tt>null</tt>.
+     */
+    public Object getAddressSpace() {
+        return null;
+    }
+
     /**
      * Deterministically and consistently compare this thread to another thread.
      */
@@ -189,6 +200,7 @@ public class KThread {
         KThread tempthread;
         
         Machine.autoGrader().finishingCurrentThread();
+        ThreadedKernel.scheduler.threadFinishing(currentThread);
         
         while ( (tempthread = joinStack.nextThread()) != null ) {
             tempthread.ready();
@@ -327,6 +339,11 @@ public class KThread {
     private static void runNextThread() {
         KThread nextThread = readyQueue.nextThread();
         if (nextThread == null) {
+            // the idle thread is yielding to itself, so nothing can happen
+            // until the next interrupt
+            if (currentThread == idleThread) {
+                Machine.interrupt().idle();
+            }
             nextThread = idleThread;
         }
 
@@ -1,13 +1,368 @@
-/*
- * To change this template, choose Tools | Templates
- * and open the template in the editor.
- */
 package nachos.threads;
 
+import nachos.machine.*;
+
 /**
+ * A scheduler that chooses threads using a lottery.
+ *
+ * <p>
+ * A lottery scheduler associates a number of tickets with each thread. When a
+ * thread needs to be dequeued, a random lottery is held, among all the tickets
+ * of all the threads waiting to be dequeued. The thread that holds the winning
+ * ticket is chosen.
+ *
+ * <p>
+ * Note that a lottery scheduler must be able to handle a lot of tickets
+ * (sometimes billions), so it is not acceptable to maintain state for every
+ * ticket.
  *
- * @author Mrm
+ * <p>
+ * A lottery scheduler must partially solve the priority inversion problem; in
+ * particular, tickets must be transferred through locks, and through joins.
+ * Unlike a priority scheduler, these tickets add (as opposed to just taking
+ * the maximum).
+ *
+ * <p>
+ * Each queue keeps the ticket counts of its waiting threads in a Fenwick tree,
+ * one slot per thread, so holding a lottery, adding a thread or changing a
+ * thread's tickets takes time logarithmic in the number of waiting threads. A
+ * thread's effective tickets are its own plus the total tickets waiting on the
+ * queues it owns that transfer priority. They are kept up to date by passing
+ * each change along, as a difference, to the owner of the queue the thread
+ * waits on, and so on down a chain of lock holders.
  */
-class LotteryScheduler {
-    
+public class LotteryScheduler extends PriorityScheduler {
+
+    /**
+     * Allocate a new lottery scheduler.
+     */
+    public LotteryScheduler() {
+    }
+
+    /**
+     * Allocate a new lottery thread queue.
+     *
+     * @param	transferPriority	<tt>true</tt> if this queue should transfer
+     * tickets from waiting threads to the owning thread.
+     * @return	a new lottery thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+        return new LotteryQueue(transferPriority);
+    }
+
+    /**
+     * The default number of tickets for a new thread.
+     */
+    public static final int priorityDefault = 1;
+    /**
+     * The minimum number of tickets that a thread can have.
+     */
+    public static final int priorityMinimum = 1;
+    /**
+     * The maximum number of tickets that a thread can have, including the
+     * tickets transferred to it.
+     */
+    public static final int priorityMaximum = Integer.MAX_VALUE;
+
+    protected int getPriorityMinimum() {
+        return priorityMinimum;
+    }
+
+    protected int getPriorityMaximum() {
+        return priorityMaximum;
+    }
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param	thread	the thread whose scheduling state to return.
+     * @return	the scheduling state of the specified thread.
+     */
+    protected LotteryState getThreadState(KThread thread) {
+        if (thread.schedulingState == null) {
+            thread.schedulingState = new LotteryState(thread);
+        }
+
+        return (LotteryState) thread.schedulingState;
+    }
+
+    /**
+     * A <tt>ThreadQueue</tt> that holds a lottery among its waiting threads.
+     */
+    protected class LotteryQueue extends ThreadQueue {
+
+        LotteryQueue(boolean transferPriority) {
+            this.transferPriority = transferPriority;
+        }
+
+        public void waitForAccess(KThread thread) {
+            Lib.assertTrue(Machine.interrupt().disabled());
+            getThreadState(thread).waitForAccess(this);
+        }
+
+        public void acquire(KThread thread) {
+            Lib.assertTrue(Machine.interrupt().disabled());
+            getThreadState(thread).acquire(this);
+        }
+
+        public KThread nextThread() {
+            Lib.assertTrue(Machine.interrupt().disabled());
+
+            LotteryState next = pickNextThread();
+            if (next == null) {
+                setOwner(null);
+                return null;
+            }
+
+            next.acquire(this);
+
+            return next.thread;
+        }
+
+        /**
+         * Hold a lottery among the waiting threads and return the winner,
+         * without removing it from this queue.
+         *
+         * @return	the winning thread, or <tt>null</tt> if none is waiting.
+         */
+        protected LotteryState pickNextThread() {
+            if (size == 0) {
+                return null;
+            }
+
+            long ticket = (long) (Lib.random() * totalTickets);
+
+            // find the first slot whose prefix sum exceeds the ticket
+            int index = 0;
+            for (int step = Integer.highestOneBit(capacity); step > 0;
+                    step >>= 1) {
+                if (index + step <= capacity && tree[index + step] <= ticket) {
+                    index += step;
+                    ticket -= tree[index];
+                }
+            }
+
+            return slots[Math.min(index, capacity - 1)];
+        }
+
+        public void print() {
+            Lib.assertTrue(Machine.interrupt().disabled());
+
+            for (int i = 0; i < capacity; i++) {
+                if (slots[i] != null) {
+                    System.out.print(slots[i].thread + "("
+                            + slots[i].effectivePriority + ") ");
+                }
+            }
+        }
+
+        /**
+         * Give a waiting thread a slot, and its tickets to the lottery.
+         */
+        void add(LotteryState state) {
+            if (size == capacity) {
+                grow();
+            }
+
+            int slot = freeSlots[capacity - size - 1];
+            size++;
+
+            slots[slot] = state;
+            state.slot = slot;
+            adjust(slot, state.effectivePriority);
+        }
+
+        /**
+         * Take a waiting thread's slot and tickets out of the lottery.
+         */
+        void remove(LotteryState state) {
+            int slot = state.slot;
+
+            adjust(slot, -state.effectivePriority);
+            slots[slot] = null;
+            state.slot = -1;
+
+            size--;
+            freeSlots[capacity - size - 1] = slot;
+        }
+
+        /**
+         * Add <i>delta</i> tickets to <i>slot</i>, and pass them on to the
+         * owner of this queue.
+         */
+        void adjust(int slot, long delta) {
+            for (int i = slot + 1; i <= capacity; i += i & -i) {
+                tree[i] += delta;
+            }
+            totalTickets += delta;
+
+            if (owner != null) {
+                owner.donate(delta);
+            }
+        }
+
+        /**
+         * Make <i>state</i> the owner of this queue, moving the queue's tickets
+         * from the previous owner. Only queues that transfer priority keep
+         * track of their owner.
+         */
+        void setOwner(LotteryState state) {
+            if (!transferPriority || owner == state) {
+                return;
+            }
+
+            if (owner != null) {
+                owner.donate(-totalTickets);
+            }
+            owner = state;
+            if (owner != null) {
+                owner.donate(totalTickets);
+            }
+        }
+
+        /**
+         * Double the number of slots, rebuilding the tree.
+         */
+        private void grow() {
+            int newCapacity = capacity * 2;
+
+            LotteryState[] newSlots = new LotteryState[newCapacity];
+            System.arraycopy(slots, 0, newSlots, 0, capacity);
+
+            // all the old slots are taken, so only the new ones are free
+            int[] newFreeSlots = new int[newCapacity];
+            for (int i = 0; i < capacity; i++) {
+                newFreeSlots[i] = newCapacity - 1 - i;
+            }
+
+            long[] newTree = new long[newCapacity + 1];
+            for (int i = 1; i <= newCapacity; i++) {
+                if (i <= capacity && newSlots[i - 1] != null) {
+                    newTree[i] += newSlots[i - 1].effectivePriority;
+                }
+                int parent = i + (i & -i);
+                if (parent <= newCapacity) {
+                    newTree[parent] += newTree[i];
+                }
+            }
+
+            slots = newSlots;
+            freeSlots = newFreeSlots;
+            tree = newTree;
+            capacity = newCapacity;
+        }
+
+        /**
+         * <tt>true</tt> if this queue should transfer tickets from waiting
+         * threads to the owning thread.
+         */
+        public boolean transferPriority;
+        /**
+         * The thread that has access to the resource this queue guards, if
+         * this queue transfers priority.
+         */
+        protected LotteryState owner = null;
+
+        private int capacity = 4;
+        private int size = 0;
+        private long totalTickets = 0;
+        /** The waiting thread in each slot, or <tt>null</tt>. */
+        private LotteryState[] slots = new LotteryState[capacity];
+        /** A stack of the free slots, topmost at <tt>capacity-size-1</tt>. */
+        private int[] freeSlots = {3, 2, 1, 0};
+        /** The Fenwick tree over the slots' tickets, indexed from 1. */
+        private long[] tree = new long[capacity + 1];
+    }
+
+    /**
+     * The scheduling state of a thread. The thread's priority is its number
+     * of tickets, and its effective priority includes the tickets transferred
+     * to it.
+     */
+    protected class LotteryState extends ThreadState {
+
+        /**
+         * Allocate a new <tt>LotteryState</tt> object and associate it with
+         * the specified thread.
+         *
+         * @param	thread	the thread this state belongs to.
+         */
+        public LotteryState(KThread thread) {
+            super(thread);
+        }
+
+        /**
+         * Called when the associated thread starts waiting on
+         * <tt>waitQueue</tt>.
+         *
+         * @param	waitQueue	the queue that the associated thread is now waiting
+         * on.
+         *
+         * @see	nachos.threads.ThreadQueue#waitForAccess
+         */
+        public void waitForAccess(LotteryQueue waitQueue) {
+            Lib.assertTrue(lotteryQueue == null);
+
+            lotteryQueue = waitQueue;
+            waitQueue.add(this);
+        }
+
+        /**
+         * Called when the associated thread has acquired access to whatever is
+         * guarded by <tt>waitQueue</tt>.
+         *
+         * @see	nachos.threads.ThreadQueue#acquire
+         * @see	nachos.threads.ThreadQueue#nextThread
+         */
+        public void acquire(LotteryQueue waitQueue) {
+            if (lotteryQueue == waitQueue) {
+                waitQueue.remove(this);
+            }
+            lotteryQueue = null;
+
+            waitQueue.setOwner(this);
+        }
+
+        /**
+         * Add <i>delta</i> to the tickets transferred to the associated
+         * thread.
+         */
+        void donate(long delta) {
+            donated += delta;
+            updateEffectivePriority();
+        }
+
+        /**
+         * Recompute the effective tickets of the associated thread, and pass
+         * any change on to the queue it is waiting on, which passes it on to
+         * that queue's owner.
+         */
+        protected void updateEffectivePriority() {
+            int newTickets =
+                    (int) Math.min(priority + donated, priorityMaximum);
+            int delta = newTickets - effectivePriority;
+
+            if (delta == 0) {
+                return;
+            }
+
+            effectivePriority = newTickets;
+            if (lotteryQueue != null) {
+                lotteryQueue.adjust(slot, delta);
+            }
+        }
+
+        /**
+         * The queue the associated thread is waiting on, if any.
+         */
+        protected LotteryQueue lotteryQueue = null;
+        /**
+         * The tickets transferred to the associated thread by the queues it
+         * owns.
+         */
+        protected long donated = 0;
+
+        /** The slot this thread holds in <tt>lotteryQueue</tt>. */
+        private int slot = -1;
+    }
 }
@@ -0,0 +1,314 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+
+/**
+ * A multi-level feedback queue scheduler. Ready threads wait in one FIFO list
+ * per level, and the first thread of the highest non-empty level (level 0)
+ * runs next.
+ *
+ * <p>
+ * A thread at level <i>i</i> may run for <tt>quantum * 2^i</tt> timer
+ * interrupts before it is preempted and moved down a level, so CPU-bound
+ * threads sink towards longer, rarer time slices. A thread that blocks (in a
+ * semaphore, lock, condition variable, join or <tt>Alarm.waitUntil()</tt>)
+ * moves up a level when it is woken, so threads that mostly wait for I/O stay
+ * near the top. A running thread is also preempted at the next timer
+ * interrupt if a thread at a higher level is ready. Every
+ * <tt>boostInterval</tt> timer interrupts, all threads are moved back to level
+ * 0, so no thread starves.
+ *
+ * <p>
+ * The queues of synchronization primitives are first-come first-served, as
+ * with <tt>RoundRobinScheduler</tt>; only the ready queue is ordered by level.
+ * The number of ticks that threads spent running at each level is printed
+ * when the kernel terminates. The scheduler is configured with the
+ * <tt>MLFQScheduler.levels</tt>, <tt>MLFQScheduler.quantum</tt> and
+ * <tt>MLFQScheduler.boostInterval</tt> keys.
+ */
+public class MLFQScheduler extends Scheduler {
+
+    /**
+     * Allocate a new multi-level feedback queue scheduler.
+     */
+    public MLFQScheduler() {
+        levels = Config.getInteger("MLFQScheduler.levels", 4);
+        quantum = Config.getInteger("MLFQScheduler.quantum", 1);
+        boostInterval = Config.getInteger("MLFQScheduler.boostInterval", 50);
+
+        Lib.assertTrue(levels > 0 && levels < 31 && quantum > 0
+                && boostInterval > 0, "bad MLFQScheduler configuration");
+
+        residency = new long[levels];
+    }
+
+    /**
+     * Allocate a new FIFO thread queue.
+     *
+     * @param	transferPriority	ignored.
+     * @return	a new FIFO thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+        return fifoScheduler.newThreadQueue(transferPriority);
+    }
+
+    /**
+     * Allocate the multi-level ready queue.
+     *
+     * @return	the ready queue.
+     */
+    public ThreadQueue newReadyQueue() {
+        Lib.assertTrue(readyQueue == null);
+
+        readyQueue = new ReadyQueue();
+        return readyQueue;
+    }
+
+    /**
+     * Charge a timer interrupt to the current thread. Moves it down a level
+     * if its quantum has expired, and boosts every thread back to level 0
+     * when it is time to.
+     *
+     * @return	<tt>true</tt> if the quantum has expired or a thread at a
+     * higher level is ready.
+     */
+    public boolean timerInterrupt() {
+        Lib.assertTrue(Machine.interrupt().disabled());
+
+        // the slice so far ran at the current level, whatever happens to it
+        // below
+        if (running != null) {
+            charge(Machine.timer().getTime());
+        }
+
+        if (++interruptsSinceBoost >= boostInterval) {
+            interruptsSinceBoost = 0;
+            boost();
+        }
+
+        ThreadState state = getThreadState(KThread.currentThread());
+        int level = state.getLevel();
+
+        if (++state.used >= quantum << level) {
+            state.used = 0;
+            if (level < levels - 1) {
+                state.level++;
+                demotions++;
+            }
+            return true;
+        }
+
+        return readyQueue != null && readyQueue.topLevel() < level;
+    }
+
+    /**
+     * Print the ticks spent running at each level, and the number of
+     * promotions, demotions and boosts.
+     */
+    public void printStats() {
+        if (running != null) {
+            charge(Machine.timer().getTime());
+        }
+
+        System.out.print("MLFQ residency:");
+        for (int i = 0; i < levels; i++) {
+            System.out.print(" " + i + "=" + residency[i]);
+        }
+        System.out.println(" ticks, promotions " + promotions + ", demotions "
+                + demotions + ", boosts " + boosts);
+    }
+
+    /**
+     * Return the number of ticks threads have spent running at the specified
+     * level.
+     *
+     * @param	level	the level.
+     * @return	the ticks spent running at <i>level</i>.
+     */
+    public long getResidency(int level) {
+        return residency[level];
+    }
+
+    /**
+     * Move every thread back to level 0. Ready threads are moved now; the
+     * others notice the new epoch the next time their level is read.
+     */
+    private void boost() {
+        boosts++;
+        boostEpoch++;
+
+        if (readyQueue != null) {
+            readyQueue.boost();
+        }
+    }
+
+    /**
+     * Charge the ticks since <tt>running</tt> was last charged to its level.
+     * Must be called before its level changes.
+     */
+    private void charge(long time) {
+        residency[running.getLevel()] += time - runningSince;
+        runningSince = time;
+    }
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param	thread	the thread whose scheduling state to return.
+     * @return	the scheduling state of the specified thread.
+     */
+    protected ThreadState getThreadState(KThread thread) {
+        if (thread.schedulingState == null) {
+            thread.schedulingState = new ThreadState();
+        }
+
+        return (ThreadState) thread.schedulingState;
+    }
+
+    /**
+     * The ready queue, with one FIFO list per level.
+     */
+    private class ReadyQueue extends ThreadQueue {
+
+        ReadyQueue() {
+            lists = new ArrayList<LinkedList<KThread>>(levels);
+            for (int i = 0; i < levels; i++) {
+                lists.add(new LinkedList<KThread>());
+            }
+        }
+
+        /**
+         * Add a thread to the list for its level. A thread that is readied by
+         * another thread was blocked, so it moves up a level first.
+         */
+        public void waitForAccess(KThread thread) {
+            Lib.assertTrue(Machine.interrupt().disabled());
+
+            ThreadState state = getThreadState(thread);
+            int level = state.getLevel();
+
+            if (thread != KThread.currentThread()) {
+                state.used = 0;
+                if (level > 0) {
+                    state.level = --level;
+                    promotions++;
+                }
+            }
+
+            lists.get(level).add(thread);
+        }
+
+        public KThread nextThread() {
+            Lib.assertTrue(Machine.interrupt().disabled());
+
+            long time = Machine.timer().getTime();
+            if (running != null) {
+                charge(time);
+            }
+
+            int level = topLevel();
+            if (level == levels) {
+                running = null;
+                return null;
+            }
+
+            KThread thread = lists.get(level).removeFirst();
+
+            running = getThreadState(thread);
+            runningSince = time;
+
+            return thread;
+        }
+
+        public void acquire(KThread thread) {
+            Lib.assertTrue(Machine.interrupt().disabled());
+
+            Lib.assertTrue(topLevel() == levels);
+        }
+
+        /**
+         * Return the highest level with a ready thread, or <tt>levels</tt> if
+         * no thread is ready.
+         */
+        int topLevel() {
+            int level = 0;
+            while (level < levels && lists.get(level).isEmpty()) {
+                level++;
+            }
+
+            return level;
+        }
+
+        /**
+         * Move every ready thread to level 0, keeping higher levels first.
+         */
+        void boost() {
+            for (int i = 1; i < levels; i++) {
+                lists.get(0).addAll(lists.get(i));
+                lists.get(i).clear();
+            }
+        }
+
+        public void print() {
+            Lib.assertTrue(Machine.interrupt().disabled());
+
+            for (int i = 0; i < levels; i++) {
+                for (KThread thread : lists.get(i)) {
+                    System.out.print(thread + "(" + i + ") ");
+                }
+            }
+        }
+
+        private ArrayList<LinkedList<KThread>> lists;
+    }
+
+    /**
+     * The scheduling state of a thread: its level and how much of its quantum
+     * it has used.
+     */
+    protected class ThreadState {
+
+        /**
+         * Return the level of the associated thread, moving it back to level 0
+         * if there has been a boost since it was last read.
+         *
+         * @return	the level of the associated thread.
+         */
+        int getLevel() {
+            if (epoch != boostEpoch) {
+                epoch = boostEpoch;
+                level = 0;
+                used = 0;
+            }
+
+            return level;
+        }
+
+        /** The level of the associated thread. */
+        int level = 0;
+        /** The timer interrupts used of the current quantum. */
+        int used = 0;
+        /** The boost this state has seen. */
+        long epoch = boostEpoch;
+    }
+
+    private int levels;
+    private int quantum;
+    private int boostInterval;
+
+    private RoundRobinScheduler fifoScheduler = new RoundRobinScheduler();
+    private ReadyQueue readyQueue = null;
+
+    private int interruptsSinceBoost = 0;
+    private long boostEpoch = 0;
+
+    /** The thread the ready queue last dispatched, and when. */
+    private ThreadState running = null;
+    private long runningSince = 0;
+
+    private long[] residency;
+    private long promotions = 0, demotions = 0, boosts = 0;
+}
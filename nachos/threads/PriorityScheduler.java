@@ -2,9 +2,6 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.TreeSet;
-import java.util.HashSet;
-import java.util.Iterator;
 import java.util.LinkedList;
 
 /**
@@ -26,6 +23,16 @@ import java.util.LinkedList;
  * <p>
  * A priority scheduler must partially solve the priority inversion problem; in
  * particular, priority must be donated through locks, and through joins.
+ *
+ * <p>
+ * Each queue keeps one FIFO list per priority level, linked through the
+ * waiting threads' states, and a bitmap of the levels that are not empty, so
+ * adding, removing or choosing a thread takes constant time. A thread's
+ * effective priority is the highest of its own priority and the effective
+ * priorities of the threads waiting on the queues it owns that transfer
+ * priority. It is cached, and recomputed only when one of those changes; a
+ * change is passed on to the owner of the queue the thread waits on, and so
+ * on down a chain of lock holders.
  */
 public class PriorityScheduler extends Scheduler {
 
@@ -54,15 +61,15 @@ public class PriorityScheduler extends Scheduler {
 
     public int getEffectivePriority(KThread thread) {
         Lib.assertTrue(Machine.interrupt().disabled());
-        int j =getThreadState(thread).getEffectivePriority();
-        return j;
+
+        return getThreadState(thread).getEffectivePriority();
     }
 
     public void setPriority(KThread thread, int priority) {
         Lib.assertTrue(Machine.interrupt().disabled());
 
-        Lib.assertTrue(priority >= priorityMinimum
-                && priority <= priorityMaximum);
+        Lib.assertTrue(priority >= getPriorityMinimum()
+                && priority <= getPriorityMaximum());
 
         getThreadState(thread).setPriority(priority);
     }
@@ -73,7 +80,8 @@ public class PriorityScheduler extends Scheduler {
         KThread thread = KThread.currentThread();
 
         int priority = getPriority(thread);
-        if (priority == priorityMaximum) {
+        if (priority == getPriorityMaximum()) {
+            Machine.interrupt().restore(intStatus);
             return false;
         }
 
@@ -89,7 +97,8 @@ public class PriorityScheduler extends Scheduler {
         KThread thread = KThread.currentThread();
 
         int priority = getPriority(thread);
-        if (priority == priorityMinimum) {
+        if (priority == getPriorityMinimum()) {
+            Machine.interrupt().restore(intStatus);
             return false;
         }
 
@@ -98,6 +107,27 @@ public class PriorityScheduler extends Scheduler {
         Machine.interrupt().restore(intStatus);
         return true;
     }
+
+    /**
+     * Return the minimum priority that a thread can have. A subclass that
+     * gives priorities a different range overrides this and
+     * <tt>getPriorityMaximum()</tt>.
+     *
+     * @return	the minimum priority.
+     */
+    protected int getPriorityMinimum() {
+        return priorityMinimum;
+    }
+
+    /**
+     * Return the maximum priority that a thread can have.
+     *
+     * @return	the maximum priority.
+     */
+    protected int getPriorityMaximum() {
+        return priorityMaximum;
+    }
+
     /**
      * The default priority for a new thread. Do not change this value.
      */
@@ -132,9 +162,6 @@ public class PriorityScheduler extends Scheduler {
 
         PriorityQueue(boolean transferPriority) {
             this.transferPriority = transferPriority;
-            //Inicializamos Variables
-            //this.transferPriority = true;
-            PriorityKTheads = new LinkedList<KThread>();
         }
 
         public void waitForAccess(KThread thread) {
@@ -149,11 +176,16 @@ public class PriorityScheduler extends Scheduler {
 
         public KThread nextThread() {
             Lib.assertTrue(Machine.interrupt().disabled());
-            ThreadState ktemp = pickNextThread();
-            if (ktemp == null) {
+
+            ThreadState next = pickNextThread();
+            if (next == null) {
+                setOwner(null);
                 return null;
             }
-            return ktemp.thread;
+
+            next.acquire(this);
+
+            return next.thread;
         }
 
         /**
@@ -163,40 +195,111 @@ public class PriorityScheduler extends Scheduler {
          * @return	the next thread that <tt>nextThread()</tt> would return.
          */
         protected ThreadState pickNextThread() {
-            //Variable de control de Scheduler del Thread
-            ThreadState ktemp = null;
-            // si la lista no esta vacia tomo el primero
-            if (PriorityKTheads != null) {
-                ktemp = (PriorityScheduler.ThreadState) PriorityKTheads.pollFirst();
-            }
-            //si el kthead no tiene lock 
-            //mientras el tamaño de la estructura de prestamos
-            //si no es cierto entonces le quito prioridad
-            if (lockHolder != null) {
-                while (lockHolder.prestamos.size() != 0) {
-                    lockHolder.effectivePriority -= (Integer) lockHolder.prestamos.pollFirst();
-                }
+            if (nonEmptyLevels == 0) {
+                return null;
             }
-            //el lockhoder es ahora el ktemp
-            lockHolder = ktemp;
-            //se retorna ktemp;
-            return ktemp;
+
+            return heads[topPriority()];
+        }
+
+        /**
+         * Return the highest effective priority of the threads waiting on this
+         * queue, or <tt>-1</tt> if none is waiting.
+         *
+         * @return	the highest effective priority waiting.
+         */
+        protected int topPriority() {
+            return 31 - Integer.numberOfLeadingZeros(nonEmptyLevels);
         }
 
         public void print() {
             Lib.assertTrue(Machine.interrupt().disabled());
-            // implement me (if you want)
+
+            for (int level = priorityMaximum; level >= priorityMinimum; level--) {
+                for (ThreadState s = heads[level]; s != null; s = s.next) {
+                    System.out.print(s.thread + "(" + level + ") ");
+                }
+            }
+        }
+
+        /**
+         * Append a thread to the list for its effective priority.
+         */
+        void add(ThreadState state) {
+            int level = state.effectivePriority;
+
+            state.prev = tails[level];
+            state.next = null;
+            if (tails[level] == null) {
+                heads[level] = state;
+            } else {
+                tails[level].next = state;
+            }
+            tails[level] = state;
+
+            nonEmptyLevels |= 1 << level;
+        }
+
+        /**
+         * Unlink a thread from the list for its effective priority.
+         */
+        void remove(ThreadState state) {
+            int level = state.effectivePriority;
+
+            if (state.prev == null) {
+                heads[level] = state.next;
+            } else {
+                state.prev.next = state.next;
+            }
+            if (state.next == null) {
+                tails[level] = state.prev;
+            } else {
+                state.next.prev = state.prev;
+            }
+            state.prev = state.next = null;
+
+            if (heads[level] == null) {
+                nonEmptyLevels &= ~(1 << level);
+            }
         }
+
+        /**
+         * Make <i>state</i> the owner of this queue, taking the queue's
+         * donations away from the previous owner. Only queues that transfer
+         * priority keep track of their owner.
+         */
+        void setOwner(ThreadState state) {
+            if (!transferPriority || owner == state) {
+                return;
+            }
+
+            ThreadState previous = owner;
+            owner = state;
+
+            if (previous != null) {
+                previous.owned.remove(this);
+                previous.updateEffectivePriority();
+            }
+            if (state != null) {
+                state.owned.add(this);
+                state.updateEffectivePriority();
+            }
+        }
+
         /**
          * <tt>true</tt> if this queue should transfer priority from waiting
          * threads to the owning thread.
          */
-        //
-        private LinkedList PriorityKTheads;
-        private boolean trasnferirPrioridad;
         public boolean transferPriority;
-        //KThread que tiene el lock
-        protected ThreadState lockHolder;
+        /**
+         * The thread that has access to the resource this queue guards, if
+         * this queue transfers priority.
+         */
+        protected ThreadState owner = null;
+
+        private ThreadState[] heads = new ThreadState[priorityMaximum + 1];
+        private ThreadState[] tails = new ThreadState[priorityMaximum + 1];
+        private int nonEmptyLevels = 0;
     }
 
     /**
@@ -216,8 +319,7 @@ public class PriorityScheduler extends Scheduler {
          */
         public ThreadState(KThread thread) {
             this.thread = thread;
-            prestamos = new LinkedList();
-            setPriority(priorityDefault);
+            priority = effectivePriority = priorityDefault;
         }
 
         /**
@@ -235,12 +337,6 @@ public class PriorityScheduler extends Scheduler {
          * @return	the effective priority of the associated thread.
          */
         public int getEffectivePriority() {
-            // implement me
-            //al prioridad efectiva sera la prioridad mas la suma de las prioridades prestadas para el thread
-            effectivePriority = priority;
-            for (int i = 0; i < prestamos.size(); i++) {
-                effectivePriority += (Integer) prestamos.get(i);
-            }
             return effectivePriority;
         }
 
@@ -255,8 +351,7 @@ public class PriorityScheduler extends Scheduler {
             }
 
             this.priority = priority;
-
-            // implement me
+            updateEffectivePriority();
         }
 
         /**
@@ -272,32 +367,13 @@ public class PriorityScheduler extends Scheduler {
          * @see	nachos.threads.ThreadQueue#waitForAccess
          */
         public void waitForAccess(PriorityQueue waitQueue) {
-            if (waitQueue.lockHolder != null) {
-                if (waitQueue.transferPriority) {
-                    if (waitQueue.lockHolder.getPriority() < this.priority) {
-                        waitQueue.lockHolder.prestamos.add(this.priority);
-                    }
-                }
-            }
-            waitQueue.PriorityKTheads.add(this);
-            bubbleSort(waitQueue);
-        }
+            Lib.assertTrue(waitingOn == null);
 
-        public void bubbleSort(PriorityQueue waitQueue) {
-
-            
-            ThreadState kaux;
-            for (int i = 0; i < waitQueue.PriorityKTheads.size() - 1; i++) {
-                for (int j = i + 1; j < waitQueue.PriorityKTheads.size(); j++) {
-                    if (((ThreadState) waitQueue.PriorityKTheads.get(i)).getEffectivePriority()
-                            <= ((ThreadState) waitQueue.PriorityKTheads.get(j)).getEffectivePriority()) {
-                        kaux = (ThreadState) waitQueue.PriorityKTheads.get(j);
-                        waitQueue.PriorityKTheads.remove(j);
-                        waitQueue.PriorityKTheads.add(j, waitQueue.PriorityKTheads.get(i));
-                        waitQueue.PriorityKTheads.remove(i);
-                        waitQueue.PriorityKTheads.add(i, kaux);
-                    }
-                }
+            waitingOn = waitQueue;
+            waitQueue.add(this);
+
+            if (waitQueue.owner != null) {
+                waitQueue.owner.updateEffectivePriority();
             }
         }
 
@@ -312,9 +388,47 @@ public class PriorityScheduler extends Scheduler {
          * @see	nachos.threads.ThreadQueue#nextThread
          */
         public void acquire(PriorityQueue waitQueue) {
-            // implement me
-            waitQueue.lockHolder = this;
+            if (waitingOn == waitQueue) {
+                waitQueue.remove(this);
+            }
+            waitingOn = null;
+
+            waitQueue.setOwner(this);
+        }
+
+        /**
+         * Recompute the effective priority of the associated thread. If it
+         * changed, move the thread to its new list in the queue it is waiting
+         * on, and recompute the effective priority of that queue's owner in
+         * turn.
+         */
+        protected void updateEffectivePriority() {
+            ThreadState state = this;
+
+            while (state != null) {
+                int newPriority = state.priority;
+                for (PriorityQueue queue : state.owned) {
+                    newPriority = Math.max(newPriority, queue.topPriority());
+                }
+
+                if (newPriority == state.effectivePriority) {
+                    return;
+                }
+
+                PriorityQueue queue = state.waitingOn;
+                if (queue == null) {
+                    state.effectivePriority = newPriority;
+                    return;
+                }
+
+                queue.remove(state);
+                state.effectivePriority = newPriority;
+                queue.add(state);
+
+                state = queue.owner;
+            }
         }
+
         /**
          * The thread with which this object is associated.
          */
@@ -324,16 +438,21 @@ public class PriorityScheduler extends Scheduler {
          */
         protected int priority;
         /**
-         * guarda el valor de la prioridad efectiva, con suma de donaciones
+         * The cached effective priority of the associated thread.
          */
-        public int effectivePriority;
+        protected int effectivePriority;
         /**
-         * se guarda el timer cuando entra a cola
+         * The queue the associated thread is waiting on, if any.
          */
-        protected long tiempo;
+        protected PriorityQueue waitingOn = null;
         /**
-         * se guardan los prestamos hechos
+         * The queues that transfer priority whose resources the associated
+         * thread has access to.
          */
-        public LinkedList prestamos;
+        protected LinkedList<PriorityQueue> owned =
+                new LinkedList<PriorityQueue>();
+
+        /** The neighbours of this thread in its list in <tt>waitingOn</tt>. */
+        private ThreadState prev = null, next = null;
     }
 }
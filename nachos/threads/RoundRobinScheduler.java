@@ -4,6 +4,8 @@ import nachos.machine.*;
 
 import java.util.LinkedList;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.HashMap;
 
 /**
  * A round-robin scheduler tracks waiting threads in FIFO queues, implemented
@@ -30,6 +32,23 @@ public class RoundRobinScheduler extends Scheduler {
 	return new FifoQueue();
     }
 
+    /**
+     * Allocate the ready queue. If <tt>RoundRobinScheduler.affinityWindow</tt>
+     * is positive, the ready queue prefers threads in the same address space
+     * as the last one it dispatched, so that fewer context switches need to
+     * flush the TLB; otherwise it is an ordinary FIFO queue.
+     *
+     * @return	a new ready queue.
+     */
+    public ThreadQueue newReadyQueue() {
+	int window = Config.getInteger("RoundRobinScheduler.affinityWindow", 0);
+
+	if (window > 0)
+	    return new AffinityQueue(window);
+	else
+	    return newThreadQueue(false);
+    }
+
     private class FifoQueue extends ThreadQueue {
 	/**
 	 * Add a thread to the end of the wait queue.
@@ -81,4 +100,113 @@ public class RoundRobinScheduler extends Scheduler {
 
 	private LinkedList<KThread> waitQueue = new LinkedList<KThread>();
     }
+
+    /**
+     * A FIFO queue that lets threads in the address space of the last thread
+     * it dispatched go ahead of the head of the queue, at most
+     * <tt>window</tt> times in a row before the head is dispatched.
+     */
+    private class AffinityQueue extends ThreadQueue {
+	AffinityQueue(int window) {
+	    this.window = window;
+	}
+
+	/**
+	 * Add a thread to the end of the queue and of its address space's
+	 * list.
+	 *
+	 * @param	thread	the thread to append to the queue.
+	 */
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    waitQueue.add(thread);
+
+	    Object space = thread.getAddressSpace();
+	    if (space != null) {
+		LinkedHashSet<KThread> threads = bySpace.get(space);
+		if (threads == null) {
+		    threads = new LinkedHashSet<KThread>();
+		    bySpace.put(space, threads);
+		}
+		threads.add(thread);
+	    }
+	}
+
+	/**
+	 * Remove the first thread in the last dispatched address space, if
+	 * there is one and the head of the queue has not been passed over
+	 * <tt>window</tt> times already, or else the first thread in the
+	 * queue.
+	 *
+	 * @return	the next thread to run, or <tt>null</tt> if the queue is
+	 *		empty.
+	 */
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    if (waitQueue.isEmpty())
+		return null;
+
+	    KThread head = waitQueue.iterator().next();
+	    KThread thread = head;
+
+	    LinkedHashSet<KThread> same = null;
+	    if (lastSpace != null && streak < window)
+		same = bySpace.get(lastSpace);
+
+	    if (same != null)
+		thread = same.iterator().next();
+
+	    if (thread == head)
+		streak = 0;
+	    else
+		streak++;
+
+	    waitQueue.remove(thread);
+
+	    Object space = thread.getAddressSpace();
+	    if (space != null) {
+		LinkedHashSet<KThread> threads = bySpace.get(space);
+		threads.remove(thread);
+		if (threads.isEmpty())
+		    bySpace.remove(space);
+
+		lastSpace = space;
+	    }
+
+	    return thread;
+	}
+
+	/**
+	 * The specified thread has received exclusive access, without using
+	 * <tt>waitForAccess()</tt> or <tt>nextThread()</tt>. Assert that no
+	 * threads are waiting for access.
+	 */
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    Lib.assertTrue(waitQueue.isEmpty());
+	}
+
+	/**
+	 * Print out the contents of the queue.
+	 */
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (KThread thread : waitQueue)
+		System.out.print(thread + " ");
+	}
+
+	private int window;
+	/** The address space of the last thread dispatched with one. */
+	private Object lastSpace = null;
+	/** The number of times in a row the head has been passed over. */
+	private int streak = 0;
+
+	private LinkedHashSet<KThread> waitQueue = new LinkedHashSet<KThread>();
+	private HashMap<Object, LinkedHashSet<KThread>> bySpace =
+	    new HashMap<Object, LinkedHashSet<KThread>>();
+    }
 }
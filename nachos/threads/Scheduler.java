@@ -52,6 +52,68 @@ public abstract class Scheduler {
      */
     public abstract ThreadQueue newThreadQueue(boolean transferPriority);
 
+    /**
+     * Allocate the queue of threads that are ready to run. <tt>KThread</tt>
+     * calls this once, when the first thread is created. The default is an
+     * ordinary queue that does not transfer priority; schedulers that treat
+     * the ready queue differently from the queues of synchronization
+     * primitives can override it.
+     *
+     * @return	a new ready queue.
+     */
+    public ThreadQueue newReadyQueue() {
+	return newThreadQueue(false);
+    }
+
+    /**
+     * Called by the alarm on every timer interrupt, with interrupts disabled.
+     * Returns <tt>true</tt> if the current thread should yield the processor.
+     * The default time-slices on every interrupt.
+     *
+     * @return	<tt>true</tt> if the current thread should yield.
+     */
+    public boolean timerInterrupt() {
+	return true;
+    }
+
+    /**
+     * Called by the alarm, with interrupts disabled, when the current thread
+     * is about to sleep until <i>wakeTime</i>. The default does nothing.
+     *
+     * @param	wakeTime	the time the thread will be woken.
+     */
+    public void sleepingUntil(long wakeTime) {
+    }
+
+    /**
+     * Called by the alarm after it wakes sleeping threads, with interrupts
+     * disabled. Returns <tt>true</tt> if the current thread should yield to
+     * them now, rather than at the next timer interrupt. The default waits.
+     *
+     * @return	<tt>true</tt> if the current thread should yield.
+     */
+    public boolean threadsWoken() {
+	return false;
+    }
+
+    /**
+     * Called by <tt>KThread.finish()</tt>, with interrupts disabled, when
+     * <i>thread</i>, the current thread, is about to finish. The default does
+     * nothing.
+     *
+     * @param	thread	the finishing thread.
+     */
+    public void threadFinishing(KThread thread) {
+    }
+
+    /**
+     * Print statistics about this scheduler. Called when the kernel
+     * terminates, which includes a user program calling <tt>halt()</tt>. The
+     * default prints nothing.
+     */
+    public void printStats() {
+    }
+
     /**
      * Get the priority of the specified thread. Must be called with
      * interrupts disabled.
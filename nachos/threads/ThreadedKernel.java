@@ -65,6 +65,7 @@ public class ThreadedKernel extends Kernel {
      * Terminate this kernel. Never returns.
      */
     public void terminate() {
+	scheduler.printStats();
 	Machine.halt();
     }
 
@@ -79,6 +80,9 @@ public class ThreadedKernel extends Kernel {
     private static RoundRobinScheduler dummy1 = null;
     private static PriorityScheduler dummy2 = null;
     private static LotteryScheduler dummy3 = null;
+    private static MLFQScheduler dummy8 = null;
+    private static CFSScheduler dummy9 = null;
+    private static EDFScheduler dummy10 = null;
     private static Condition2 dummy4 = null;
     private static Communicator dummy5 = null;
     private static Rider dummy6 = null;
@@ -1,5 +1,7 @@
 package nachos.userprog;
 
+import java.util.LinkedList;
+
 import nachos.machine.*;
 import nachos.threads.*;
 import nachos.userprog.*;
@@ -7,6 +9,11 @@ import nachos.userprog.*;
 /**
  * Provides a simple, synchronized interface to the machine's console. The
  * interface can also be accessed through <tt>OpenFile</tt> objects.
+ *
+ * <p>
+ * If the console coalesces interrupts, each receive interrupt moves every
+ * byte the console has buffered into this object's own buffer, and each send
+ * interrupt lets a writer refill the console's send buffer.
  */
 public class SynchConsole {
     /**
@@ -41,12 +48,10 @@ public class SynchConsole {
 	boolean intStatus = Machine.interrupt().disable();	
 	readLock.acquire();
 
-	if (block || charAvailable) {
-	    charAvailable = false;
+	if (block || !received.isEmpty()) {
 	    readWait.P();
 
-	    value = console.readByte();
-	    Lib.assertTrue(value != -1);
+	    value = received.removeFirst();
 	}
 	else {
 	    value = -1;
@@ -67,8 +72,11 @@ public class SynchConsole {
     }
 
     private void receiveInterrupt() {
-	charAvailable = true;
-	readWait.V();
+	int value;
+	while ((value = console.readByte()) != -1) {
+	    received.add(value);
+	    readWait.V();
+	}
     }
 
     /**
@@ -78,11 +86,40 @@ public class SynchConsole {
      */
     public void writeByte(int value) {
 	writeLock.acquire();
-	console.writeByte(value);
-	writeWait.P();
+	send(value);
+	flush();
 	writeLock.release();
     }
 
+    /**
+     * Send <i>length</i> bytes from <i>buf</i>, starting at <i>offset</i>.
+     * Blocks until every byte has been sent; no other writer's bytes are
+     * interleaved with them.
+     *
+     * @param	buf	the buffer holding the bytes to send.
+     * @param	offset	the first byte to send.
+     * @param	length	the number of bytes to send.
+     */
+    public void writeBytes(byte[] buf, int offset, int length) {
+	writeLock.acquire();
+	for (int i=0; i<length; i++)
+	    send(buf[offset+i]);
+	flush();
+	writeLock.release();
+    }
+
+    private void send(int value) {
+	console.writeByte(value);
+
+	while (!console.canWrite())
+	    writeWait.P();
+    }
+
+    private void flush() {
+	while (console.isWriting())
+	    writeWait.P();
+    }
+
     /**
      * Return an <tt>OpenFile</tt> that can be used to write this as a file.
      *
@@ -96,7 +133,7 @@ public class SynchConsole {
 	writeWait.V();
     }
 
-    private boolean charAvailable = false;
+    private LinkedList<Integer> received = new LinkedList<Integer>();
 
     private SerialConsole console;
     private Lock readLock = new Lock();
@@ -136,8 +173,7 @@ public class SynchConsole {
 	    if (!canWrite)
 		return 0;
 	    
-	    for (int i=0; i<length; i++)
-		SynchConsole.this.writeByte(buf[offset+i]);
+	    SynchConsole.this.writeBytes(buf, offset, length);
 	    
 	    return length;
 	}
@@ -33,6 +33,15 @@ public class UThread extends KThread {
 	Lib.assertNotReached();
     }
     
+    /**
+     * Return the process this thread belongs to.
+     *
+     * @return	this thread's process.
+     */
+    public Object getAddressSpace() {
+	return process;
+    }
+
     /**
      * Save state before giving up the processor to another thread.
      */
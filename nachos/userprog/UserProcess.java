@@ -5,6 +5,7 @@ import nachos.threads.*;
 import nachos.userprog.*;
 
 import java.io.EOFException;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.LinkedList;
 
@@ -37,10 +38,21 @@ public class UserProcess {
     protected final int stackPages = 8;
     private int initialPC, initialSP;
     private int argc, argv;
+    /** The registers to start with, if this process was restored from a checkpoint. */
+    private int[] savedRegisters = null;
     private static final int pageSize = Processor.pageSize;
     private static final char dbgProcess = 'a';
     protected OpenFile[] fileTable = new OpenFile[16];
     private static final int maxSyscallArgLength = 256;
+
+    /** Checkpoint files written by checkpoint() end with this. */
+    private static final String checkpointSuffix = ".ckpt";
+    /** "NCKP", the first word of a checkpoint file. */
+    private static final int checkpointMagic = 0x504B434E;
+    /** Magic, register count, registers and page count. */
+    private static final int checkpointHeaderLength = 4 + 4 + Processor.numUserRegisters * 4 + 4;
+    /** Checkpoint page flags. */
+    private static final int pageReadOnly = 0x01, pageZero = 0x02;
     protected LinkedList<String> openFilesList = new LinkedList<String>();
     
     private boolean exited = false;
@@ -51,6 +63,9 @@ public class UserProcess {
  
     private static int runningProcesses = 0;
  
+    /** The process whose page table is loaded in the processor. */
+    private static UserProcess loadedAddressSpace = null;
+ 
     private static int nextPID = 0;
     protected int PID;
     protected UserProcess parent;
@@ -115,10 +130,31 @@ public class UserProcess {
 
     /**
      * Restore the state of this process after a context switch. Called by
-     * <tt>UThread.restoreState()</tt>.
+     * <tt>UThread.restoreState()</tt>. The page table is only installed if
+     * another process ran since this one did.
      */
     public void restoreState() {
-        Machine.processor().setPageTable(pageTable);
+        if (switchAddressSpace()) {
+            Machine.processor().setPageTable(pageTable);
+        }
+    }
+
+    /**
+     * Record that this process's address space is the one loaded into the
+     * processor. Kernel threads do not touch the page table or the TLB, so a
+     * switch back to the process that last ran, even after kernel threads
+     * have run in between, does not need to reload them.
+     *
+     * @return	<tt>true</tt> if another process's address space was loaded,
+     * so this one must be installed.
+     */
+    protected boolean switchAddressSpace() {
+        if (loadedAddressSpace == this) {
+            return false;
+        }
+
+        loadedAddressSpace = this;
+        return true;
     }
 
     /**
@@ -181,17 +217,16 @@ public class UserProcess {
         Lib.assertTrue(offset >= 0 && length >= 0 && offset + length <= data.length);
 
         int vaddr = svaddr;
-        byte[] memory = Machine.processor().getMemory() ;   // pageSize * numPages
+        MainMemory memory = Machine.processor().getMemory() ;   // pageSize * numPages
 
         while (length != 0) {
-            int paddr = translateVirtualAddress(vaddr);
-            if (paddr < 0 || paddr >= memory.length) {
-                handleException(Processor.exceptionAddressError);
+            long paddr = translateVirtualAddress(vaddr, false);
+            if (paddr < 0 || paddr >= memory.getSize()) {
+                break;
             }
 
-            
-            int amount = Math.min(length, Processor.makeAddress( Processor.pageFromAddress(paddr) + 1 , 0) - paddr);
-            System.arraycopy(memory, paddr, data, offset, amount);
+            int amount = Math.min(length, Processor.pageSize - Processor.offsetFromAddress(vaddr));
+            memory.read(paddr, data, offset, amount);
 
             vaddr += amount;
             offset += amount;
@@ -206,7 +241,7 @@ public class UserProcess {
     public int readVirtualMemory2(int svaddr, byte[] data, int offset, int length) {
     Lib.assertTrue(offset >= 0 && length >= 0&& offset + length <= data.length);
 
-    byte[] memory = Machine.processor().getMemory();
+    MainMemory memory = Machine.processor().getMemory();
 
     int vpn = Processor.pageFromAddress(svaddr);
        int voffset = Processor.offsetFromAddress(svaddr);
@@ -217,9 +252,9 @@ public class UserProcess {
             int curlength = Math.min(length, Processor.pageSize - voffset);
             if (pageTable[vpn].valid == false){
             }
-            int paddr = Processor.makeAddress(pageTable[vpn].ppn, voffset);
+            long paddr = Processor.makePhysicalAddress(pageTable[vpn].ppn, voffset);
             pageTable[vpn].used = true; //頁面存取後 Used Bit 設定成True
-            System.arraycopy(memory, paddr, data, offset + amount, curlength);
+            memory.read(paddr, data, offset + amount, curlength);
 
             amount += curlength;
             length -= curlength;
@@ -260,16 +295,16 @@ public class UserProcess {
     public int writeVirtualMemory(int svaddr, byte[] data, int offset, int length) {
         Lib.assertTrue(offset >= 0 && length >= 0 && offset + length <= data.length);
         int vaddr = svaddr;
-        byte[] memory = Machine.processor().getMemory();
+        MainMemory memory = Machine.processor().getMemory();
 
         while (length != 0) {
-            int paddr = translateVirtualAddress(vaddr);
-            if (paddr < 0 || paddr >= memory.length) {
-                handleException(Processor.exceptionAddressError);
+            long paddr = translateVirtualAddress(vaddr, true);
+            if (paddr < 0 || paddr >= memory.getSize()) {
+                break;
             }
 
-            int amount = Math.min(length, Processor.makeAddress(Processor.pageFromAddress(paddr) + 1, 0) - paddr);
-            System.arraycopy(data, offset, memory, paddr, amount);
+            int amount = Math.min(length, Processor.pageSize - Processor.offsetFromAddress(vaddr));
+            memory.write(paddr, data, offset, amount);
 
             vaddr += amount;
             offset += amount;
@@ -296,6 +331,10 @@ public class UserProcess {
     private boolean load(String name, String[] args) {
         Lib.debug(dbgProcess, "UserProcess.load(\"" + name + "\")");
 
+        if (name.endsWith(checkpointSuffix)) {
+            return loadCheckpoint(name);
+        }
+
         OpenFile executable = ThreadedKernel.fileSystem.open(name, false);
         if (executable == null) {
             Lib.debug(dbgProcess, "\topen failed");
@@ -371,6 +410,145 @@ public class UserProcess {
         return true;
     }
 
+    /**
+     * Restore this process from a checkpoint written by <tt>checkpoint()</tt>:
+     * allocate its pages, copy their contents back, and arrange for it to
+     * resume with the saved registers. Only standard input and output are
+     * open in the restored process.
+     *
+     * @param	name	the name of the checkpoint file.
+     * @return	<tt>true</tt> if the checkpoint was successfully restored.
+     */
+    protected boolean loadCheckpoint(String name) {
+        OpenFile file = ThreadedKernel.fileSystem.open(name, false);
+        if (file == null) {
+            Lib.debug(dbgProcess, "\topen failed");
+            return false;
+        }
+
+        byte[] image = new byte[file.length()];
+        int length = file.read(0, image, 0, image.length);
+        file.close();
+
+        // check the whole image before allocating anything
+        if (length != image.length || length < checkpointHeaderLength
+                || Lib.bytesToInt(image, 0) != checkpointMagic
+                || Lib.bytesToInt(image, 4) != Processor.numUserRegisters) {
+            Lib.debug(dbgProcess, "\tcorrupt checkpoint");
+            return false;
+        }
+
+        int pages = Lib.bytesToInt(image, checkpointHeaderLength - 4);
+        int offset = checkpointHeaderLength;
+        for (int vpn = 0; vpn < pages && offset < length; vpn++) {
+            offset += 1 + (((image[offset] & pageZero) != 0) ? 0 : pageSize);
+        }
+        if (pages <= 0 || offset != length) {
+            Lib.debug(dbgProcess, "\tcorrupt checkpoint");
+            return false;
+        }
+
+        pageTable = UserKernel.getPhysicalPages(pages);
+        if (pageTable == null) {
+            Lib.debug(dbgProcess, "\tinsufficient physical memory");
+            return false;
+        }
+        numPages = pages;
+
+        MainMemory memory = Machine.processor().getMemory();
+        byte[] zero = new byte[pageSize];
+
+        offset = checkpointHeaderLength;
+        for (int vpn = 0; vpn < numPages; vpn++) {
+            int flags = image[offset++];
+            long paddr = Processor.makePhysicalAddress(pageTable[vpn].ppn, 0);
+
+            if ((flags & pageZero) != 0) {
+                memory.write(paddr, zero, 0, pageSize);
+            } else {
+                memory.write(paddr, image, offset, pageSize);
+                offset += pageSize;
+            }
+
+            pageTable[vpn].vpn = vpn;
+            pageTable[vpn].readOnly = (flags & pageReadOnly) != 0;
+        }
+
+        savedRegisters = new int[Processor.numUserRegisters];
+        for (int i = 0; i < savedRegisters.length; i++) {
+            savedRegisters[i] = Lib.bytesToInt(image, 8 + i * 4);
+        }
+
+        return true;
+    }
+
+    /**
+     * Save this process's registers and memory in the named file, which must
+     * end in <tt>.ckpt</tt>. Running the file with <tt>execute()</tt> (or
+     * from the <tt>exec</tt> syscall, or as the shell program) starts a new
+     * process that resumes from exactly this state.
+     *
+     * <p>
+     * This is a snapshot of one process, not of the machine: a restored
+     * process still runs on a freshly booted kernel, and no interrupt,
+     * timer, statistics or device state is saved. It must be called on this
+     * process's own thread, between instructions, for example from
+     * <tt>handleException()</tt> or an autograder's timer hook (as
+     * <tt>nachos.ag.CheckpointGrader</tt> does), so that the processor holds
+     * this process's registers.
+     *
+     * @param	fileName	the name of the checkpoint file.
+     * @return	<tt>true</tt> if the checkpoint was saved.
+     */
+    public boolean checkpoint(String fileName) {
+        if (!fileName.endsWith(checkpointSuffix)) {
+            return false;
+        }
+
+        Processor processor = Machine.processor();
+
+        int[] registers = new int[Processor.numUserRegisters];
+        for (int i = 0; i < registers.length; i++) {
+            registers[i] = processor.readRegister(i);
+        }
+
+        byte[] image = new byte[checkpointHeaderLength + numPages * (1 + pageSize)];
+        Lib.bytesFromInt(image, 0, checkpointMagic);
+        Lib.bytesFromInt(image, 4, registers.length);
+        for (int i = 0; i < registers.length; i++) {
+            Lib.bytesFromInt(image, 8 + i * 4, registers[i]);
+        }
+        Lib.bytesFromInt(image, checkpointHeaderLength - 4, numPages);
+
+        // one flag byte per page, followed by its contents unless it is zero
+        byte[] page = new byte[pageSize];
+        int offset = checkpointHeaderLength;
+        for (int vpn = 0; vpn < numPages; vpn++) {
+            if (readVirtualMemory(Processor.makeAddress(vpn, 0), page) != pageSize) {
+                return false;
+            }
+
+            int flags = isReadOnlyPage(vpn) ? pageReadOnly : 0;
+            if (isZero(page)) {
+                image[offset++] = (byte) (flags | pageZero);
+            } else {
+                image[offset++] = (byte) flags;
+                System.arraycopy(page, 0, image, offset, pageSize);
+                offset += pageSize;
+            }
+        }
+
+        OpenFile file = UserKernel.fileSystem.open(fileName, true);
+        if (file == null) {
+            return false;
+        }
+
+        int written = file.write(0, image, 0, offset);
+        file.close();
+
+        return written == offset;
+    }
+
     /**
      * Allocates memory for this process, and loads the COFF sections into
      * memory. If this returns successfully, the process will definitely be run
@@ -429,11 +607,19 @@ public class UserProcess {
      * program loaded into this process. Set the PC register to point at the
      * start function, set the stack pointer register to point at the top of the
      * stack, set the A0 and A1 registers to argc and argv, respectively, and
-     * initialize all other registers to 0.
+     * initialize all other registers to 0. A process restored from a
+     * checkpoint gets its saved registers instead.
      */
     public void initRegisters() {
         Processor processor = Machine.processor();
 
+        if (savedRegisters != null) {
+            for (int i = 0; i < savedRegisters.length; i++) {
+                processor.writeRegister(i, savedRegisters[i]);
+            }
+            return;
+        }
+
         // by default, everything's 0
         for (int i = 0; i < processor.numUserRegisters; i++) {
             processor.writeRegister(i, 0);
@@ -462,7 +648,7 @@ public class UserProcess {
          *  
          *  Algoritmo implementado
          *  1. Verificar si es llamado por el root proces
-         *  2. Hacer el machine halt
+         *  2. Terminar el kernel, que hace el machine halt
          *  3. Si todo esta bien, retorna 0
          * 
          */
@@ -472,9 +658,12 @@ public class UserProcess {
         
 
         if( PID != 0 ) return -1 ; 
-        Machine.halt();
 
-        Lib.assertNotReached("Machine.halt() did not halt machine!");
+        // terminate the kernel as exit() does, so it can print its
+        // statistics and clean up before the machine halts
+        Kernel.kernel.terminate();
+
+        Lib.assertNotReached("Kernel.terminate() did not halt machine!");
         return 0;
     }
     private static final int syscallHalt = 0,
@@ -486,7 +675,10 @@ public class UserProcess {
             syscallRead = 6,
             syscallWrite = 7,
             syscallClose = 8,
-            syscallUnlink = 9;
+            syscallUnlink = 9,
+            syscallMemcpy = 20,
+            syscallMemset = 21,
+            syscallStrlen = 22;
 
     /**
      * Handle a syscall exception. Called by <tt>handleException()</tt>. The
@@ -507,6 +699,11 @@ public class UserProcess {
      * </tt></td></tr>
      * <tr><td>8</td><td><tt>int close(int fd);</tt></td></tr>
      * <tr><td>9</td><td><tt>int unlink(char *name);</tt></td></tr>
+     * <tr><td>20</td><td><tt>void *hostmemcpy(void *dst, void *src,
+     * unsigned int n);</tt></td></tr>
+     * <tr><td>21</td><td><tt>void *hostmemset(void *s, int c,
+     * unsigned int n);</tt></td></tr>
+     * <tr><td>22</td><td><tt>unsigned int hoststrlen(char *str);</tt></td></tr>
      * </table>
      *
      * @param	syscall	the syscall number.
@@ -540,6 +737,13 @@ public class UserProcess {
                 return handleClose(a0);
             case syscallUnlink:
                 return handleUnlink(a0);
+
+            case syscallMemcpy:
+                return handleMemcpy(a0, a1, a2);
+            case syscallMemset:
+                return handleMemset(a0, a1, a2);
+            case syscallStrlen:
+                return handleStrlen(a0);
             default:
                 handleExit(1);
                 //Lib.debug(dbgProcess, "Unknown syscall " + syscall);
@@ -674,7 +878,8 @@ public class UserProcess {
         }
 
         String fileName = readVirtualMemoryString(fileNamePtr, maxSyscallArgLength);
-        if (fileName == null || !fileName.endsWith(".coff")) {
+        if (fileName == null || !(fileName.endsWith(".coff")
+                || fileName.endsWith(checkpointSuffix))) {
             return -1;
         }
 
@@ -859,6 +1064,139 @@ public class UserProcess {
         
         
         
+    }
+
+    /**
+     * Test whether virtual page <i>vpn</i> of this process is read-only.
+     */
+    protected boolean isReadOnlyPage(int vpn) {
+        return pageTable[vpn].readOnly;
+    }
+
+    private static boolean isZero(byte[] data) {
+        for (int i = 0; i < data.length; i++) {
+            if (data[i] != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /*
+     * The host memory syscalls work a page run at a time through
+     * readVirtualMemory() and writeVirtualMemory(), so pages are faulted in
+     * and their used and dirty bits are set exactly as for read() and
+     * write(). A bad buffer terminates the process, just as the MIPS loop in
+     * libnachos would have faulted. A length of 2^31 or more cannot be a
+     * valid buffer and returns -1, as read() and write() do.
+     */
+
+    /**
+     * Copy with the semantics of memmove(): overlapping buffers are copied as
+     * if through a temporary buffer. Each run is read in full before it is
+     * written, so copying forwards is safe when <i>dst</i> is below
+     * <i>src</i>, and copying backwards is safe when it is above.
+     */
+    private int handleMemcpy(int dst, int src, int length) {
+        if (length < 0) {
+            return -1;
+        }
+        if (!validRange(dst, length) || !validRange(src, length)) {
+            return terminate();
+        }
+
+        byte[] buffer = new byte[pageSize];
+
+        if (dst - src > 0 && dst - src < length) {
+            for (int left = length; left > 0; ) {
+                int offset = Processor.offsetFromAddress(src + left - 1);
+                int amount = Math.min(left, offset + 1);
+                left -= amount;
+
+                if (readVirtualMemory(src + left, buffer, 0, amount) != amount
+                        || writeVirtualMemory(dst + left, buffer, 0, amount) != amount) {
+                    return terminate();
+                }
+            }
+
+            return dst;
+        }
+
+        for (int done = 0; done < length; ) {
+            int amount = Math.min(length - done,
+                    pageSize - Processor.offsetFromAddress(src + done));
+
+            if (readVirtualMemory(src + done, buffer, 0, amount) != amount
+                    || writeVirtualMemory(dst + done, buffer, 0, amount) != amount) {
+                return terminate();
+            }
+
+            done += amount;
+        }
+
+        return dst;
+    }
+
+    private int handleMemset(int dst, int value, int length) {
+        if (length < 0) {
+            return -1;
+        }
+        if (!validRange(dst, length)) {
+            return terminate();
+        }
+
+        byte[] buffer = new byte[Math.min(length, pageSize)];
+        Arrays.fill(buffer, (byte) value);
+
+        for (int done = 0; done < length; ) {
+            int amount = Math.min(length - done,
+                    pageSize - Processor.offsetFromAddress(dst + done));
+
+            if (writeVirtualMemory(dst + done, buffer, 0, amount) != amount) {
+                return terminate();
+            }
+
+            done += amount;
+        }
+
+        return dst;
+    }
+
+    private int handleStrlen(int str) {
+        byte[] buffer = new byte[pageSize];
+
+        for (int length = 0; ; ) {
+            int vaddr = str + length;
+            if (!validAddress(vaddr)) {
+                return terminate();
+            }
+
+            int amount = pageSize - Processor.offsetFromAddress(vaddr);
+            if (readVirtualMemory(vaddr, buffer, 0, amount) != amount) {
+                return terminate();
+            }
+
+            for (int i = 0; i < amount; i++) {
+                if (buffer[i] == 0) {
+                    return length + i;
+                }
+            }
+
+            length += amount;
+        }
+    }
+
+    /**
+     * Check that a buffer of <i>length</i> bytes starting at <i>vaddr</i> lies
+     * entirely within this process's address space.
+     */
+    protected boolean validRange(int vaddr, int length) {
+        if (length == 0) {
+            return true;
+        }
+
+        return length > 0 && validAddress(vaddr)
+                && validAddress(vaddr + length - 1);
     }
 
     private int openFile(int puntero_archivo, boolean create) {
@@ -940,7 +1278,7 @@ public class UserProcess {
     }
 
     
-    private int translateVirtualAddress(int address) {
+    private long translateVirtualAddress(int address, boolean writing) {
         
         
         /*
@@ -964,9 +1302,15 @@ public class UserProcess {
         if (vpage >= pageTable.length)  return -1;
         TranslationEntry entry = pageTable[vpage];
         if (! entry.valid) return -1;
+        if (writing && entry.readOnly) return -1;
+
+        // set the used and dirty bits, as the processor would
+        entry.used = true;
+        if (writing) entry.dirty = true;
+
         int ppage = pageTable[vpage].ppn;
         
-        return Processor.makeAddress(ppage, offset);
+        return Processor.makePhysicalAddress(ppage, offset);
     }
     
     
@@ -427,12 +427,14 @@ public class VMKernel extends UserKernel {
                 int indice_swap_hash = swap_hash_table.get(pid);
 
                 Processor processor = Machine.processor();
-                byte[] memoria_physical_instance = processor.getMemory();
-                int paddr = Processor.makeAddress(page.ppn, 0);
+                MainMemory memoria_physical_instance = processor.getMemory();
+                long paddr = Processor.makePhysicalAddress(page.ppn, 0);
 
-                int bytes = file.read(indice_swap_hash, memoria_physical_instance, paddr, 1024);
+                byte[] buffer = new byte[Processor.pageSize];
+                int bytes = file.read(indice_swap_hash, buffer, 0, 1024);
 
                 if(bytes == 1024) {
+                    memoria_physical_instance.write(paddr, buffer, 0, 1024);
                     memoryPhysicalInstance.addPage(pid, page);
                 }
                 return bytes == 1024; 
@@ -480,9 +482,11 @@ public class VMKernel extends UserKernel {
                         int bytes = 0;
                         if(file != null) {
                                 Processor processor = Machine.processor();
-                                byte[] memoria_physical_instance = processor.getMemory();
-                                int paddr = Processor.makeAddress(page.ppn, 0);
-                                bytes = file.write(indice_swap_hash, memoria_physical_instance, paddr, Processor.pageSize);
+                                MainMemory memoria_physical_instance = processor.getMemory();
+                                long paddr = Processor.makePhysicalAddress(page.ppn, 0);
+                                byte[] buffer = new byte[Processor.pageSize];
+                                memoria_physical_instance.read(paddr, buffer, 0, Processor.pageSize);
+                                bytes = file.write(indice_swap_hash, buffer, 0, Processor.pageSize);
                         }
 
                         if(bytes != Processor.pageSize) {
@@ -40,10 +40,12 @@ public class VMProcess extends UserProcess {
 
 	/**
 	 * Restore the state of this process after a context switch. Called by
-	 * <tt>UThread.restoreState()</tt>.
+	 * <tt>UThread.restoreState()</tt>. The TLB is only flushed if another
+	 * process ran since this one did.
 	 */
 	public void restoreState() {
-		VMKernel.getKernel().invalidateTLB();
+		if (switchAddressSpace())
+			VMKernel.getKernel().invalidateTLB();
 	}
 
 	/**
@@ -146,11 +148,12 @@ public class VMProcess extends UserProcess {
             // Kernel y su vpn
             if(te.vpn >= numPages - stackPages -1) {
                 // Pagina que se encuentra en un stakc
-                byte[] memory = Machine.processor().getMemory();
-                int paddr = Processor.makeAddress(te.ppn, 0);
-                int end = paddr + Processor.pageSize;
+                MainMemory memory = Machine.processor().getMemory();
+                long paddr = Processor.makePhysicalAddress(te.ppn, 0);
+                byte[] pattern = new byte[Processor.pageSize];
 
-                patternArray(memory, paddr, end);
+                patternArray(pattern, 0, Processor.pageSize);
+                memory.write(paddr, pattern, 0, Processor.pageSize);
                 
             } else {
                 // El caso del coff
@@ -227,6 +230,24 @@ public class VMProcess extends UserProcess {
             }
 	}
 
+	/**
+	 * Demand-paged processes can't be restored from a checkpoint, since
+	 * their pages would have to be installed in the swap file.
+	 */
+	protected boolean loadCheckpoint(String name) {
+		Lib.debug(dbgVM, "\tcheckpoints can't be restored under VM");
+		return false;
+	}
+
+	protected boolean isReadOnlyPage(int vpn) {
+		for (int s = 0; s < coff.getNumSections(); s++) {
+			CoffSection section = coff.getSection(s);
+			if (section.getFirstVPN() <= vpn && vpn < section.getFirstVPN() + section.getLength())
+				return section.isReadOnly();
+		}
+		return false;
+	}
+
 	public int handleSyscall(int syscall, int a0, int a1, int a2, int a3) {
 		return super.handleSyscall(syscall, a0, a1, a2, a3);
 	}
@@ -251,7 +272,7 @@ public class VMProcess extends UserProcess {
 	 */
 	public int readVirtualMemory(int vaddr, byte[] data, int offset, int length) {
 
-		byte[] memory = Machine.processor().getMemory();
+		MainMemory memory = Machine.processor().getMemory();
 		
 		int vpn = Processor.pageFromAddress(vaddr);
 		
@@ -266,8 +287,8 @@ public class VMProcess extends UserProcess {
                             pageLock.release();
                             checkPageFault(-1);
 			}
-			int paddr = Processor.makeAddress(page.ppn, voffset);
-			System.arraycopy(memory, paddr, data, offset, copy);
+			long paddr = Processor.makePhysicalAddress(page.ppn, voffset);
+			memory.read(paddr, data, offset, copy);
 			page.used = true;
 			pageLock.release();
 			
@@ -300,7 +321,7 @@ public class VMProcess extends UserProcess {
 	public int writeVirtualMemory(int vaddr, byte[] data, int offset, int length) {
 		
 
-		byte[] memory = Machine.processor().getMemory();
+		MainMemory memory = Machine.processor().getMemory();
 		
 		int vpn = Processor.pageFromAddress(vaddr);
 		
@@ -317,9 +338,13 @@ public class VMProcess extends UserProcess {
                             pageLock.release();
                             checkPageFault(-1);
                     }
-                    int paddr = Processor.makeAddress(page.ppn, voffset);
+                    if(page.readOnly) {
+                            pageLock.release();
+                            break;
+                    }
+                    long paddr = Processor.makePhysicalAddress(page.ppn, voffset);
 
-                    System.arraycopy(data, offset, memory, paddr, copy);
+                    memory.write(paddr, data, offset, copy);
                     Lib.debug(dbgVM, "---WRITE: " + page.ppn + " vpn: " + vpn);		
 
                     page.dirty = true;